@@ -0,0 +1,560 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Every stored reading, appended to memory-mapped files of fixed-size
+ * records, so startup warm-up and reprocessing can replay recent readings
+ * from disk instead of scanning the archive table.
+ *
+ * The log is a series of segments named archive-[number].seg, each holding
+ * up to SEGMENT_RECORDS records in the order they were stored. Strings
+ * (user, privacy, client key) are kept once per segment in
+ * archive-[number].dict and records refer to them by number; each entry
+ * carries a checksum, so a string cut short or left half written ends the
+ * dictionary there instead of shifting every string after it. A segment's
+ * header has its record count, which is only moved on once a record is
+ * complete, and the newest reading time in each block of INDEX_EVERY
+ * records, so a replay can skip blocks that are all too old.
+ *
+ * The log only knows about readings stored through this server while it
+ * was running. The current segment's header carries the time from which the
+ * log is complete; covers() checks a window against it before a replay is
+ * trusted. That time moves up to now whenever the log may have missed a
+ * reading: an append that failed, or a start that doesn't follow a clean
+ * close within MAX_RESTART_GAP, since the server may have stored readings
+ * with the log off in between. close() leaves a marker file to say it ran.
+ * After a clean close the next start carries on appending to the last
+ * segment, if it has room, rather than starting another. A dictionary write
+ * that fails ends the segment, since what's on disk after it is unknown.
+ * Segments past the retention are deleted when a new one is started.
+ *
+ * Appends come from the ingestion write path and replays from startup and
+ * background jobs, so access is synchronized.
+ */
+public class ArchiveLog {
+	private static String logName = "ca.cumulonimbus.barometer.ArchiveLog";
+	private static Logger log = Logger.getLogger(logName);
+
+	private static final String PREFIX = "archive-";
+	private static final String SUFFIX = ".seg";
+	private static final String DICTIONARY_SUFFIX = ".dict";
+	private static final String CLOSED_MARKER = "archive.closed";
+	// Longest a restart can take for the log to still count as complete across it
+	private static final long MAX_RESTART_GAP = 5 * 60 * 1000;
+
+	private static final int MAGIC = 0x41524348;
+	// 2 added the dictionary checksums
+	private static final int VERSION = 2;
+	private static final int SEGMENT_RECORDS = 1 << 20;
+	private static final int INDEX_EVERY = 1024;
+	private static final int INDEX_ENTRIES = SEGMENT_RECORDS / INDEX_EVERY;
+
+	// Header: magic, version, record count, unused, complete-from time, then the block index
+	private static final int COUNT_OFFSET = 8;
+	private static final int COVERED_FROM_OFFSET = 16;
+	private static final int INDEX_OFFSET = 24;
+	private static final int HEADER = INDEX_OFFSET + INDEX_ENTRIES * 8;
+
+	// Record: time, latitude, longitude, reading, tzoffset, location and reading accuracy, user, privacy, client key
+	private static final int RECORD = 8 + 8 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+	private static final int NO_STRING = -1;
+
+	private final File directory;
+	private final long retention;
+
+	private long currentNumber = -1;
+	private MappedByteBuffer current;
+	private int currentCount = 0;
+	private DataOutputStream currentDictionary;
+	// a dictionary write failed part way; the next append starts a new segment
+	private boolean dictionaryFailed = false;
+	// the current segment's dictionary, and where each string is in it
+	private final ArrayList<String> stringList = new ArrayList<String>();
+	private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+	private long coveredFrom;
+
+	/**
+	 * @param directory where the segments live
+	 * @param retention ms to keep a segment after its newest reading
+	 */
+	public ArchiveLog(File directory, long retention) {
+		this.directory = directory;
+		this.retention = retention;
+	}
+
+	/**
+	 * Pick up the segments already on disk and start a new one to append to.
+	 */
+	public synchronized void open() throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create archive log directory " + directory);
+		}
+		long now = System.currentTimeMillis();
+		long closedAt = takeClosedMarker();
+		boolean dropped = dropUnreadable();
+		long[] segments = segments();
+		coveredFrom = now;
+		if(segments.length > 0) {
+			long last = segments[segments.length - 1];
+			if(dropped) {
+				log.info("archive log dropped segments it couldn't read; complete from now");
+			} else if(closedAt >= 0 && now - closedAt <= MAX_RESTART_GAP) {
+				coveredFrom = map(last, false).getLong(COVERED_FROM_OFFSET);
+				if(resume(last)) {
+					expire();
+					return;
+				}
+			} else {
+				log.info("archive log wasn't closed just before this start; complete from now");
+			}
+		}
+		roll((segments.length > 0) ? segments[segments.length - 1] + 1 : 0);
+	}
+
+	// Carry on appending to segment number, unless it's full
+	private boolean resume(long number) throws IOException {
+		MappedByteBuffer segment = map(number, true);
+		int count = segment.getInt(COUNT_OFFSET);
+		if(count >= SEGMENT_RECORDS) {
+			return false;
+		}
+		String[] dictionary = readDictionary(number);
+		// Rewritten so appends follow the last whole entry
+		writeDictionary(number, dictionary);
+		current = segment;
+		current.putLong(COVERED_FROM_OFFSET, coveredFrom);
+		currentNumber = number;
+		currentCount = count;
+		strings.clear();
+		stringList.clear();
+		for(String value : dictionary) {
+			strings.put(value, stringList.size());
+			stringList.add(value);
+		}
+		currentDictionary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictionaryFile(number), true)));
+		dictionaryFailed = false;
+		return true;
+	}
+
+	// Delete segments from an older version or otherwise not ours; true if there were any
+	private boolean dropUnreadable() {
+		boolean dropped = false;
+		for(long number : segments()) {
+			try {
+				map(number, false);
+			} catch(IOException ioe) {
+				log.info("dropping archive log segment " + number + ": " + ioe.getMessage());
+				segmentFile(number).delete();
+				dictionaryFile(number).delete();
+				dropped = true;
+			}
+		}
+		return dropped;
+	}
+
+	public synchronized void append(BarometerReading br) throws IOException {
+		if(current == null) {
+			return;
+		}
+		long time = Math.round(br.getTime());
+		long now = System.currentTimeMillis();
+		if(time > now + BarometerReading.MAX_CLOCK_AHEAD) {
+			// dated too far ahead; it would keep its segment from ever expiring
+			return;
+		}
+		try {
+			write(br, time);
+		} catch(IOException ioe) {
+			// the log is missing this reading now
+			incompleteBefore(Math.max(now, time));
+			throw ioe;
+		}
+	}
+
+	private void write(BarometerReading br, long time) throws IOException {
+		if(currentCount == SEGMENT_RECORDS || dictionaryFailed) {
+			roll(currentNumber + 1);
+		}
+		int user = intern(br.getAndroidId());
+		int privacy = intern(br.getSharingPrivacy());
+		int clientKey = intern(br.getClientKey());
+		int position = HEADER + currentCount * RECORD;
+		current.putLong(position, time);
+		current.putDouble(position + 8, br.getLatitude());
+		current.putDouble(position + 16, br.getLongitude());
+		current.putDouble(position + 24, br.getReading());
+		current.putInt(position + 32, br.getTimeZoneOffset());
+		current.putFloat(position + 36, br.getLocationAccuracy());
+		current.putFloat(position + 40, br.getReadingAccuracy());
+		current.putInt(position + 44, user);
+		current.putInt(position + 48, privacy);
+		current.putInt(position + 52, clientKey);
+		int index = INDEX_OFFSET + (currentCount / INDEX_EVERY) * 8;
+		current.putLong(index, Math.max(current.getLong(index), time));
+		// the record counts once it's all there
+		currentCount++;
+		current.putInt(COUNT_OFFSET, currentCount);
+	}
+
+	/**
+	 * Whether the log holds every reading stored after sinceWhen.
+	 */
+	public synchronized boolean covers(long sinceWhen) {
+		return current != null && sinceWhen >= coveredFrom;
+	}
+
+	/**
+	 * Hand every logged reading after sinceWhen to the handler, segment by
+	 * segment in the order they were stored. One reading object is reused.
+	 * @return the number of readings handed over
+	 */
+	public synchronized int replay(long sinceWhen, DatabaseHelper.ArchiveReadingHandler handler) throws IOException {
+		int rows = 0;
+		BarometerReading br = new BarometerReading();
+		for(long number : segments()) {
+			MappedByteBuffer segment = (number == currentNumber) ? current : map(number, false);
+			int count = segment.getInt(COUNT_OFFSET);
+			String[] dictionary = null;
+			for(int block = 0; block * INDEX_EVERY < count; block++) {
+				if(segment.getLong(INDEX_OFFSET + block * 8) <= sinceWhen) {
+					continue;
+				}
+				if(dictionary == null) {
+					dictionary = (number == currentNumber) ? currentStrings() : readDictionary(number);
+				}
+				int end = Math.min(count, (block + 1) * INDEX_EVERY);
+				for(int record = block * INDEX_EVERY; record < end; record++) {
+					int position = HEADER + record * RECORD;
+					long time = segment.getLong(position);
+					int user = segment.getInt(position + 44);
+					if(time <= sinceWhen || user == NO_STRING || user >= dictionary.length) {
+						continue;
+					}
+					br.setTime(time);
+					br.setLatitude(segment.getDouble(position + 8));
+					br.setLongitude(segment.getDouble(position + 16));
+					br.setReading(segment.getDouble(position + 24));
+					br.setTimeZoneOffset(segment.getInt(position + 32));
+					br.setLocationAccuracy(segment.getFloat(position + 36));
+					br.setReadingAccuracy(segment.getFloat(position + 40));
+					br.setAndroidId(dictionary[user]);
+					br.setSharingPrivacy(lookup(dictionary, segment.getInt(position + 48)));
+					br.setClientKey(lookup(dictionary, segment.getInt(position + 52)));
+					handler.handle(br);
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Blank a user's records and their id, as when they ask for their data to
+	 * be deleted.
+	 */
+	public synchronized void remove(String userId) throws IOException {
+		for(long number : segments()) {
+			boolean isCurrent = (number == currentNumber);
+			String[] dictionary = isCurrent ? currentStrings() : readDictionary(number);
+			int user = Arrays.asList(dictionary).indexOf(userId);
+			if(user < 0) {
+				continue;
+			}
+			MappedByteBuffer segment = isCurrent ? current : map(number, true);
+			int count = segment.getInt(COUNT_OFFSET);
+			for(int record = 0; record < count; record++) {
+				int position = HEADER + record * RECORD + 44;
+				if(segment.getInt(position) == user) {
+					segment.putInt(position, NO_STRING);
+				}
+			}
+			segment.force();
+			// Keep the numbering of everything else
+			dictionary[user] = "";
+			if(isCurrent) {
+				currentDictionary.close();
+				strings.remove(userId);
+				stringList.set(user, "");
+			}
+			writeDictionary(number, dictionary);
+			if(isCurrent) {
+				dictionaryFailed = false;
+				currentDictionary = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(dictionaryFile(number), true)));
+			}
+		}
+	}
+
+	// Close the log, leaving the marker that says it was closed cleanly
+	public synchronized void close() {
+		boolean wasOpen = (current != null);
+		closeSegment();
+		if(wasOpen) {
+			try {
+				DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, CLOSED_MARKER)));
+				try {
+					out.writeLong(System.currentTimeMillis());
+				} finally {
+					out.close();
+				}
+			} catch(IOException ioe) {
+				log.info("unable to mark the archive log closed: " + ioe.getMessage());
+			}
+		}
+	}
+
+	// When the last run closed the log, or -1 if it didn't. The marker only counts once.
+	private long takeClosedMarker() {
+		File marker = new File(directory, CLOSED_MARKER);
+		if(!marker.exists()) {
+			return -1;
+		}
+		long closedAt = -1;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(marker));
+			try {
+				closedAt = in.readLong();
+			} finally {
+				in.close();
+			}
+		} catch(IOException ioe) {
+			log.info("unreadable archive log marker: " + ioe.getMessage());
+		}
+		if(!marker.delete()) {
+			log.info("unable to delete " + marker);
+			return -1;
+		}
+		return closedAt;
+	}
+
+	// Readings from before time may be missing from the log
+	private void incompleteBefore(long time) {
+		coveredFrom = Math.max(coveredFrom, time);
+		if(current != null) {
+			current.putLong(COVERED_FROM_OFFSET, coveredFrom);
+		}
+	}
+
+	private void closeSegment() {
+		if(current != null) {
+			current.force();
+			current = null;
+		}
+		if(currentDictionary != null) {
+			try {
+				currentDictionary.close();
+			} catch(IOException ioe) {
+				log.info(ioe.getMessage());
+			}
+			currentDictionary = null;
+		}
+	}
+
+	// Start segment number, then drop segments past the retention
+	private void roll(long number) throws IOException {
+		closeSegment();
+		File file = segmentFile(number);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(HEADER + (long) SEGMENT_RECORDS * RECORD);
+			current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) SEGMENT_RECORDS * RECORD);
+		} finally {
+			// the mapping stays valid once the file is closed
+			raf.close();
+		}
+		current.putInt(0, MAGIC);
+		current.putInt(4, VERSION);
+		current.putInt(COUNT_OFFSET, 0);
+		current.putLong(COVERED_FROM_OFFSET, coveredFrom);
+		for(int i = 0; i < INDEX_ENTRIES; i++) {
+			current.putLong(INDEX_OFFSET + i * 8, Long.MIN_VALUE);
+		}
+		currentNumber = number;
+		currentCount = 0;
+		strings.clear();
+		stringList.clear();
+		currentDictionary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictionaryFile(number), false)));
+		dictionaryFailed = false;
+		expire();
+	}
+
+	private void expire() throws IOException {
+		long cutoff = System.currentTimeMillis() - retention;
+		long[] segments = segments();
+		for(long number : segments) {
+			if(number == currentNumber) {
+				continue;
+			}
+			MappedByteBuffer segment = map(number, false);
+			long newest = Long.MIN_VALUE;
+			for(int i = 0; i < INDEX_ENTRIES; i++) {
+				newest = Math.max(newest, segment.getLong(INDEX_OFFSET + i * 8));
+			}
+			if(newest >= cutoff) {
+				// still in the retention, or holding a reading dated ahead; later segments may still go
+				continue;
+			}
+			if(!segmentFile(number).delete()) {
+				log.info("unable to delete archive log segment " + number);
+				continue;
+			}
+			dictionaryFile(number).delete();
+			incompleteBefore(newest);
+		}
+	}
+
+	private int intern(String value) throws IOException {
+		if(value == null) {
+			return NO_STRING;
+		}
+		Integer number = strings.get(value);
+		if(number == null) {
+			number = stringList.size();
+			try {
+				writeEntry(currentDictionary, value);
+				currentDictionary.flush();
+			} catch(IOException ioe) {
+				dictionaryFailed = true;
+				throw ioe;
+			}
+			stringList.add(value);
+			strings.put(value, number);
+		}
+		return number;
+	}
+
+	private String[] currentStrings() {
+		return stringList.toArray(new String[stringList.size()]);
+	}
+
+	private static String lookup(String[] dictionary, int number) {
+		return (number >= 0 && number < dictionary.length) ? dictionary[number] : null;
+	}
+
+	private MappedByteBuffer map(long number, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segmentFile(number), writable ? "rw" : "r");
+		try {
+			MappedByteBuffer segment = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if(segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+				throw new IOException("archive log segment " + number + " isn't one of ours");
+			}
+			return segment;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private String[] readDictionary(long number) throws IOException {
+		ArrayList<String> dictionary = new ArrayList<String>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dictionaryFile(number))));
+		try {
+			while(true) {
+				String value = in.readUTF();
+				if(in.readInt() != checksum(value)) {
+					log.info("archive log dictionary " + number + " is damaged after " + dictionary.size() + " strings");
+					break;
+				}
+				dictionary.add(value);
+			}
+		} catch(EOFException eof) {
+			// the end, or a string cut short by a crash
+		} catch(UTFDataFormatException ufe) {
+			// a half-written string
+		} finally {
+			in.close();
+		}
+		return dictionary.toArray(new String[dictionary.size()]);
+	}
+
+	// Write to a temporary file and rename, so a crash leaves the old dictionary intact
+	private void writeDictionary(long number, String[] dictionary) throws IOException {
+		File temp = new File(directory, PREFIX + number + DICTIONARY_SUFFIX + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			for(String value : dictionary) {
+				writeEntry(out, value);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		File target = dictionaryFile(number);
+		if(!temp.renameTo(target)) {
+			target.delete();
+			if(!temp.renameTo(target)) {
+				throw new IOException("unable to replace " + target);
+			}
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, String value) throws IOException {
+		out.writeUTF(value);
+		out.writeInt(checksum(value));
+	}
+
+	private static int checksum(String value) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(value.getBytes("UTF-8"));
+		return (int) crc.getValue();
+	}
+
+	private File segmentFile(long number) {
+		return new File(directory, PREFIX + number + SUFFIX);
+	}
+
+	private File dictionaryFile(long number) {
+		return new File(directory, PREFIX + number + DICTIONARY_SUFFIX);
+	}
+
+	// Numbers of the segments on disk, oldest first
+	private long[] segments() {
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if(names == null) {
+			return new long[0];
+		}
+		ArrayList<Long> numbers = new ArrayList<Long>();
+		for(String name : names) {
+			try {
+				numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			} catch(NumberFormatException nfe) {
+				// not one of ours
+			}
+		}
+		long[] result = new long[numbers.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = numbers.get(i);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "archive log: segment " + currentNumber + ", " + currentCount + " records";
+	}
+}
@@ -0,0 +1,148 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keep archive and CurrentConditionArchive partitioned by month, so queries
+ * on recent data only touch recent partitions and old data can be retired a
+ * whole partition at a time.
+ *
+ * Once a day this makes sure the tables are partitioned and that the
+ * current month and the next MONTHS_AHEAD months have partitions. Any
+ * partition that ends before the retention cutoff is retired. Archived
+ * readings are first rolled up into hourly per-cell rows in archive_hourly,
+ * then the partition is dropped, or detached and kept as a standalone table
+ * with cold storage on.
+ */
+public class ArchiveMaintenance {
+	private static String logName = "ca.cumulonimbus.barometer.ArchiveMaintenance";
+	private static Logger log = Logger.getLogger(logName);
+
+	private static final int MONTHS_AHEAD = 2;
+	private static final long RUN_HOURS = 24;
+
+	// Partitioned tables, the column they're partitioned on, and whether to roll them up
+	private static final String[][] TABLES = {
+		{"archive", "daterecorded", "rollup"},
+		{"currentconditionarchive", "time", ""},
+	};
+
+	private final DatabaseHelper dh;
+	private final int retentionMonths;
+	private final boolean coldStorage;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param dh
+	 * @param retentionMonths months of raw readings to keep; 0 keeps everything
+	 * @param coldStorage detach expired partitions instead of dropping them
+	 */
+	public ArchiveMaintenance(DatabaseHelper dh, int retentionMonths, boolean coldStorage) {
+		this.dh = dh;
+		this.retentionMonths = retentionMonths;
+		this.coldStorage = coldStorage;
+	}
+
+	public synchronized void start() {
+		if(scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "archive-maintenance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					maintain();
+				} catch(RuntimeException e) {
+					// keep the schedule alive; try again tomorrow
+					log.info("archive maintenance failed: " + e.getMessage());
+				}
+			}
+		}, 0, RUN_HOURS, TimeUnit.HOURS);
+	}
+
+	public synchronized void stop() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	void maintain() {
+		long now = System.currentTimeMillis();
+		for(String[] table : TABLES) {
+			String name = table[0];
+			String column = table[1];
+			if(!dh.partitionArchive(name, column)) {
+				continue;
+			}
+
+			// Partitions for this month and the next few. Where an existing partition
+			// (like the legacy one) already covers the start of a month, start after it.
+			ArrayList<DatabaseHelper.ArchivePartition> partitions = dh.getArchivePartitions(name);
+			for(int month = 0; month <= MONTHS_AHEAD; month++) {
+				long from = monthStart(now, month);
+				long to = monthStart(now, month + 1);
+				String partitionName = name + "_" + monthName(from);
+				boolean exists = false;
+				for(DatabaseHelper.ArchivePartition partition : partitions) {
+					if(partition.getName().equals(partitionName)) {
+						exists = true;
+					} else if(partition.getFrom() < to && partition.getTo() > from) {
+						from = Math.max(from, partition.getTo());
+					}
+				}
+				if(!exists && from < to) {
+					dh.addArchivePartition(name, column, partitionName, from, to);
+				}
+			}
+
+			if(retentionMonths > 0) {
+				long cutoff = monthStart(now, -retentionMonths);
+				for(DatabaseHelper.ArchivePartition partition : dh.getArchivePartitions(name)) {
+					if(partition.getTo() <= cutoff) {
+						dh.retireArchivePartition(name, partition, table[2].equals("rollup"), coldStorage);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start of the month that is months away from the one containing time, in
+	 * ms since the epoch, UTC.
+	 */
+	static long monthStart(long time, int months) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.MONTH, months);
+		return calendar.getTimeInMillis();
+	}
+
+	// y2013m04 for April 2013
+	private static String monthName(long monthStart) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(monthStart);
+		int month = calendar.get(Calendar.MONTH) + 1;
+		return "y" + calendar.get(Calendar.YEAR) + "m" + (month < 10 ? "0" : "") + month;
+	}
+}
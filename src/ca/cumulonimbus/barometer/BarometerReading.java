@@ -10,6 +10,9 @@ import java.io.Serializable;
  */
 public class BarometerReading implements Serializable {
 	private static final long serialVersionUID = -4207080607881087063L;
+	// How far ahead of the server's clock a reading's time may be. Phone clocks
+	// drift a little; anything further out is turned away.
+	public static final long MAX_CLOCK_AHEAD = 10 * 60 * 1000;
 	double latitude;
 	double longitude;
 	double time;
@@ -21,6 +24,23 @@ public class BarometerReading implements Serializable {
 	float locationAccuracy;
 	float readingAccuracy;
 
+	public BarometerReading() {
+		
+	}
+	
+	public BarometerReading(BarometerReading other) {
+		this.latitude = other.latitude;
+		this.longitude = other.longitude;
+		this.time = other.time;
+		this.reading = other.reading;
+		this.timeZoneOffset = other.timeZoneOffset;
+		this.androidId = other.androidId;
+		this.sharingPrivacy = other.sharingPrivacy;
+		this.clientKey = other.clientKey;
+		this.locationAccuracy = other.locationAccuracy;
+		this.readingAccuracy = other.readingAccuracy;
+	}
+	
 	public String toString() {
 		String ret = "Reading: " + reading + "\n" +
 					 "Latitude: " + latitude + "\n" + 
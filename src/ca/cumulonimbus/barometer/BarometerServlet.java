@@ -1,22 +1,40 @@
 package ca.cumulonimbus.barometer;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
 public class BarometerServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 	private static String logName = "ca.cumulonimbus.barometer.BarometerServlet";
@@ -25,50 +43,301 @@ public class BarometerServlet extends HttpServlet {
 	String serverURL = "";  
 	String distributionServerURL = "";
 	
-	private static DatabaseHelper dh;
+	private DatabaseHelper dh;
+	
+	// Background batched writes for submitted readings. Null when readings
+	// are written synchronously in the request thread.
+	private IngestionQueue ingestionQueue;
+	
+	// Readings waiting for PNDV and other downstream consumers
+	private RelayQueue relay;
+	private int relayBatchLimit = 10000;
+	
+	// Requests are handled here with the container thread released. Null when
+	// they're handled synchronously on the container thread.
+	private ThreadPoolExecutor requestExecutor;
+	// Answers requests that waited in the executor's queue past requestTimeout
+	private ScheduledThreadPoolExecutor requestTimer;
+	private long requestTimeout = 60 * 1000;
+	
+	// Batches of readings and conditions are posted with this content type
+	private static final String BATCH_CONTENT_TYPE = "application/x-barometer-batch";
+	private static final int MAX_BATCH_RECORDS = 5000;
+	
+	// Reading submissions are decoded here, one decoder per request thread
+	private final ThreadLocal<SubmissionDecoder> decoders = new ThreadLocal<SubmissionDecoder>() {
+		@Override
+		protected SubmissionDecoder initialValue() {
+			return new SubmissionDecoder();
+		}
+	};
+	
+	// Rows per page of recent_data and archive downloads
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+	private static final int MAX_PAGE_SIZE = 10000;
 	
 	public BarometerServlet() {
-		dh = new DatabaseHelper();
+		
 	}
 	
-	private ArrayList<BarometerReading> bufferToPNDV = new ArrayList<BarometerReading>();
-	private int sendBufferLimit = 200;
+	@Override
+	public void init() throws ServletException {
+		// Size of the database connection pool shared by all request threads
+		String poolSize = getInitParameter("dbPoolSize");
+		if(poolSize != null) {
+			dh = new DatabaseHelper(Integer.parseInt(poolSize.trim()));
+		} else {
+			dh = new DatabaseHelper();
+		}
+		dh.upgradeSchema();
+		String plans = dh.checkQueryPlans();
+		if(plans.contains("SEQ SCAN")) {
+			log.info("queries without a usable index:\n" + plans);
+		}
+		// Stored readings are also logged to local disk for fast replay, if there's a place for them
+		String archiveLogDir = getInitParameter("archiveLogDir");
+		if(archiveLogDir != null && archiveLogDir.trim().length() > 0) {
+			dh.startArchiveLog(new File(archiveLogDir.trim()), intInitParameter("archiveLogDays", 9));
+		}
+		dh.warmIndexes();
+		dh.warmHotArchive();
+		dh.warmTendency();
+		dh.startRanking();
+		dh.startTrendMap();
+		// Monthly archive partitions; expired ones are rolled up, then detached or dropped
+		dh.startArchiveMaintenance(intInitParameter("archiveRetentionMonths", 24),
+				"true".equals(getInitParameter("archiveColdStorage")));
+		
+		if("true".equals(getInitParameter("asyncIngestion"))) {
+			int queueSize = intInitParameter("ingestionQueueSize", 10000);
+			int writers = intInitParameter("ingestionWriters", 2);
+			int batchSize = intInitParameter("ingestionBatchSize", 200);
+			int offerTimeout = intInitParameter("ingestionOfferTimeout", 500);
+			ingestionQueue = new IngestionQueue(dh, queueSize, writers, batchSize, offerTimeout);
+			ingestionQueue.start();
+		}
+		
+		// Without a log directory relayed readings are kept in memory only
+		String relayLogDir = getInitParameter("relayLogDir");
+		File relayDirectory = null;
+		if(relayLogDir != null && relayLogDir.trim().length() > 0) {
+			relayDirectory = new File(relayLogDir.trim());
+		}
+		int relayCapacity = intInitParameter("relayCapacity", 100000);
+		relayBatchLimit = intInitParameter("relayBatchLimit", 10000);
+		// The consumers allowed to pull, comma separated
+		HashSet<String> relayConsumers = new HashSet<String>();
+		String consumerNames = getInitParameter("relayConsumers");
+		for(String name : ((consumerNames != null) ? consumerNames : "pndv").split(",")) {
+			if(name.trim().length() > 0) {
+				relayConsumers.add(name.trim());
+			}
+		}
+		// Readings the log holds for a consumer that stopped pulling, before the oldest are dropped
+		long relayMaxLag = intInitParameter("relayMaxLag", 10000000);
+		relay = new RelayQueue(relayCapacity, relayConsumers, relayDirectory, relayMaxLag, distributionServerURL, intInitParameter("relayNotifyEvery", 200));
+		relay.start();
+		
+		// Threads that requests are handled on, off the container's threads.
+		// 0 handles them on the container thread as before.
+		int requestThreads = intInitParameter("requestThreads", 32);
+		if(requestThreads > 0) {
+			requestTimeout = intInitParameter("requestTimeout", 60 * 1000);
+			final AtomicInteger threadNumber = new AtomicInteger();
+			requestExecutor = new ThreadPoolExecutor(requestThreads, requestThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(intInitParameter("requestQueueSize", 5000)),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "request-" + threadNumber.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			requestExecutor.allowCoreThreadTimeOut(true);
+			requestTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "request-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// most requests start long before their timer; don't keep the cancelled ones around
+			requestTimer.setRemoveOnCancelPolicy(true);
+		}
+	}
+	
+	private int intInitParameter(String name, int defaultValue) {
+		String value = getInitParameter(name);
+		if(value == null) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
+	
+	@Override
+	public void destroy() {
+		if(requestTimer != null) {
+			requestTimer.shutdownNow();
+		}
+		if(requestExecutor != null) {
+			requestExecutor.shutdown();
+			try {
+				requestExecutor.awaitTermination(30, TimeUnit.SECONDS);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(ingestionQueue != null) {
+			ingestionQueue.shutdown(30 * 1000);
+		}
+		if(relay != null) {
+			relay.shutdown();
+		}
+		if(dh != null) {
+			dh.close();
+		}
+	}
 	
 	/**
-	 * Add to the list to send to PNDV. Send if the buffer is large (sendBufferLimit).
+	 * Queue a reading for PNDV. The relay's sender tells PNDV when there's
+	 * enough waiting, and PNDV comes back for it with pndv=buffer.
 	 * @param br
 	 */
 	public void addToPNDV(BarometerReading br) {
-		bufferToPNDV.add(br);
-		if (bufferToPNDV.size() >= sendBufferLimit) {
-			/*
-			 * To send this data securely and with minimal overhead:
-			 * 1. Send a Request to PNDV telling it we have the data.
-			 * 2. PNDV replies with its own Request.
-			 * 3. We respond with CSVd data in the Response
-			 */
-			
-			// Send the initial notice
-
-			DefaultHttpClient httpClient = new DefaultHttpClient();
-			HttpGet httpGet = new HttpGet(distributionServerURL);
-			try {
-				HttpResponse responseFromPNDV = httpClient.execute(httpGet);
-			} catch (ClientProtocolException cpe) {
-				log.info(cpe.getMessage());
-			} catch(IOException ioe) {
-				log.info(ioe.getMessage());
-			}
-		}
+		relay.append(br);
 	}
 	
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		doPost(request, response);
 	}
 	
+	/**
+	 * Requests are handed to the request executor and handled there with the
+	 * container thread released, so slow queries and uploads don't tie up the
+	 * container's threads. When the executor is full, or a request waits in
+	 * its queue past the timeout, the client gets a 503.
+	 *
+	 * Whoever claims the request first owns its response: the worker when it
+	 * starts, or the request timer while it's still queued. The container's own
+	 * async timeout is off, so once a worker has a request nothing else
+	 * answers or completes it, and no thread waits on the worker.
+	 */
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		// Get and process the parameters
-		Map<String, String[]> params = request.getParameterMap();
+		if(requestExecutor == null || !request.isAsyncSupported()) {
+			handleRequest(request, response);
+			return;
+		}
+		final AsyncContext context = request.startAsync();
+		context.setTimeout(0);
+		final AtomicBoolean started = new AtomicBoolean(false);
+		final AtomicBoolean expired = new AtomicBoolean(false);
+		final AtomicReference<Future<?>> expiry = new AtomicReference<Future<?>>();
+		final Runnable task = new Runnable() {
+			public void run() {
+				if(!started.compareAndSet(false, true)) {
+					// timed out while queued; already answered
+					return;
+				}
+				Future<?> timer = expiry.get();
+				if(timer != null) {
+					timer.cancel(false);
+				}
+				try {
+					handleRequest((HttpServletRequest) context.getRequest(), (HttpServletResponse) context.getResponse());
+				} catch(Exception e) {
+					log(e.getMessage());
+				} finally {
+					try {
+						context.complete();
+					} catch(IllegalStateException ise) {
+						// the connection failed and the container already finished the request
+						if(!expired.get()) {
+							throw ise;
+						}
+					}
+				}
+			}
+		};
+		context.addListener(new AsyncListener() {
+			public void onTimeout(AsyncEvent event) throws IOException {
+				onError(event);
+			}
+			
+			public void onError(AsyncEvent event) throws IOException {
+				if(started.compareAndSet(false, true)) {
+					requestExecutor.remove(task);
+					event.getAsyncContext().complete();
+				} else {
+					// the worker has it and will complete it
+					expired.set(true);
+				}
+			}
+			
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+			
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+		try {
+			requestExecutor.execute(task);
+			expiry.set(requestTimer.schedule(new Runnable() {
+				public void run() {
+					if(started.compareAndSet(false, true)) {
+						requestExecutor.remove(task);
+						log("request timed out after " + requestTimeout + "ms in the queue");
+						try {
+							((HttpServletResponse) context.getResponse()).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+						} catch(IOException ioe) {
+							log(ioe.getMessage());
+						}
+						context.complete();
+					}
+				}
+			}, requestTimeout, TimeUnit.MILLISECONDS));
+		} catch(RejectedExecutionException ree) {
+			if(started.compareAndSet(false, true)) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				context.complete();
+			}
+		}
+	}
+	
+	private void handleRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		// Get and process the parameters. Readings are posted as forms, and those
+		// are decoded straight from the body; everything else goes through the
+		// parameter map.
+		Map<String, String[]> params;
+		String contentType = request.getContentType();
+		if("POST".equals(request.getMethod()) && contentType != null
+				&& contentType.startsWith(BATCH_CONTENT_TYPE)) {
+			submitBatch(request, response);
+			return;
+		} else if("POST".equals(request.getMethod()) && contentType != null
+				&& contentType.startsWith("application/x-www-form-urlencoded")) {
+			SubmissionDecoder decoder = decoders.get();
+			SubmissionDecoder.Status status = decoder.decode(request.getInputStream(), request.getCharacterEncoding());
+			if(status == SubmissionDecoder.Status.OK) {
+				submitReading(decoder.toReading(), response);
+				return;
+			} else if(status != SubmissionDecoder.Status.NOT_A_READING) {
+				String error = status + (decoder.getErrorField() != null ? " " + decoder.getErrorField() : "");
+				log("rejected reading: " + error);
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				response.setContentType("text/html");
+				PrintWriter out = response.getWriter();
+				out.write("There was an error. Please check your request and try again. Error information: " + error);
+				out.close();
+				return;
+			}
+			// The body has been read, so only the query string is left in the request's map
+			params = new HashMap<String, String[]>(request.getParameterMap());
+			params.putAll(decoder.getParameterMap());
+		} else {
+			params = request.getParameterMap();
+		}
 		
 		// What type of request is this? Options are:
 		// 1. We're being sent new data
@@ -94,25 +363,56 @@ public class BarometerServlet extends HttpServlet {
 				}
 
 				out.close();
-			} else if (params.get("download")[0].equals("recent_data")) {
-				//log(params.containsKey("days") + "");
-				if(params.containsKey("days")) {
-					String days = params.get("days")[0];
-					int numOfDays = Integer.valueOf(days);
-					
-					ArrayList<BarometerReading> recentReadings = dh.getRecentReadings(numOfDays);
-					
-					response.setContentType("text/html");
-					PrintWriter out = response.getWriter();
-					try {
-						for(BarometerReading br : recentReadings) {
-							out.print(barometerReadingToWeb(br));
-						}
-					} catch(Exception e) {
-						log(e.getMessage());
+			} else if (params.get("download")[0].equals("recent_data")
+					|| params.get("download")[0].equals("archive")) {
+				// Users' latest readings, or the whole archive, a page at a time. Each page
+				// ends with a cursor in X-Next-Cursor; pass it back as after= for the next.
+				boolean archive = params.get("download")[0].equals("archive");
+				long sinceWhen = 0;
+				DatabaseHelper.PageCursor after = null;
+				int limit = DEFAULT_PAGE_SIZE;
+				try {
+					if(params.containsKey("days")) {
+						sinceWhen = System.currentTimeMillis() - (1000L * 60 * 60 * 24 * Integer.parseInt(params.get("days")[0]));
+					} else if(params.containsKey("since")) {
+						sinceWhen = Long.parseLong(params.get("since")[0]);
+					} else if(!archive) {
+						return;
 					}
-					out.close();
+					if(params.containsKey("after")) {
+						after = DatabaseHelper.PageCursor.decode(params.get("after")[0]);
+					}
+					if(params.containsKey("limit")) {
+						limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(params.get("limit")[0])));
+					}
+				} catch(IllegalArgumentException iae) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, iae.getMessage());
+					return;
+				}
+				
+				ArrayList<BarometerReading> page = new ArrayList<BarometerReading>();
+				DatabaseHelper.PageCursor next;
+				try {
+					next = dh.getReadingsPage(archive, sinceWhen, after, limit, page);
+				} catch(SQLException sqle) {
+					log(sqle.getMessage());
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					return;
+				}
+				
+				response.setContentType("text/html");
+				if(next != null) {
+					response.setHeader("X-Next-Cursor", next.encode());
 				}
+				RowWriter out = new RowWriter(response.getOutputStream());
+				try {
+					for(BarometerReading br : page) {
+						out.writeReading(br);
+					}
+				} catch(Exception e) {
+					log(e.getMessage());
+				}
+				out.close();
 			} else if (params.get("download")[0].equals("local_data")) {
 				log("sending local_data");
 				double centerLat = Double.parseDouble(params.get("centerlat")[0]) / 1E6;
@@ -121,46 +421,94 @@ public class BarometerServlet extends HttpServlet {
 				double longSpan = Double.parseDouble(params.get("longspan")[0]) / 1E6;
 				//log.info("local data: " + centerLat + ", " + centerLon);
 				
-				ArrayList<Double> regionList = new ArrayList<Double>();
 				double lat1 = centerLat - latSpan / 2;
 				double lat2 = centerLat + latSpan / 2;
 				double lon1 = centerLon - longSpan / 2;
 				double lon2 = centerLon + longSpan / 2;
-				regionList.add(lat1);
-				regionList.add(lat2);
-				regionList.add(lon1);
-				regionList.add(lon2);
 				
-				long day = (1000 * 60 * 60 * 24 * 1);
 				long shortPeriod = (1000 * 60 * 60 * 6); // last six hours
 				long shortConditionsPeriod = (1000 * 60 * 60 * 1); // last one hour
-				long sinceWhen = Calendar.getInstance().getTimeInMillis() - shortPeriod;
-				long sinceWhenConditions = Calendar.getInstance().getTimeInMillis() - shortConditionsPeriod;
 				
-				// Get the visible readings
-				ArrayList<BarometerReading> recentReadings = dh.getReadingsWithinRegion(regionList, sinceWhen);
-				// Get the visible conditions
-				ArrayList<CurrentCondition> recentConditions = dh.getConditionsWithinRegion(regionList, sinceWhenConditions);
-
-				log("sending " + recentReadings.size() + " readings and " + recentConditions.size() + " conditions" );
+				// Snap the view to map tiles and use the cached tile payloads where we have them.
+				// Cutoffs are taken from the start of the cache's time bucket so every tile
+				// built in a bucket agrees.
+				TileCache tileCache = dh.getTileCache();
+				long bucket = tileCache.currentBucket();
+				long sinceWhen = tileCache.bucketStart(bucket) - shortPeriod;
+				long sinceWhenConditions = tileCache.bucketStart(bucket) - shortConditionsPeriod;
+				
+				int built = 0;
+				ArrayList<TileCache.Tile> tiles = TileCache.tilesForRegion(lat1, lat2, lon1, lon2);
+				ArrayList<TileCache.Rows[]> payloads = new ArrayList<TileCache.Rows[]>(tiles.size());
+				for(TileCache.Tile tile : tiles) {
+					TileCache.Rows[] cached = tileCache.get(tile, bucket);
+					if(cached == null) {
+						long generation = tileCache.generation(tile);
+						cached = buildLocalDataTile(tile, sinceWhen, sinceWhenConditions);
+						tileCache.put(tile, bucket, generation, cached[0], cached[1]);
+						built++;
+					}
+					payloads.add(cached);
+				}
+				
+				log("sending " + tiles.size() + " tiles, " + built + " built");
 				
-				// Send the Recent Readings
+				// Send the Recent Readings. The tiles reach past the view, so only
+				// what's inside it goes out, and no more than a single query returned.
 				response.setContentType("text/html");
-				PrintWriter out = response.getWriter();
-				out.print("local_data return;");
-				for(BarometerReading br : recentReadings) {
-					out.print(barometerReadingToWeb(br));
+				RowWriter out = new RowWriter(response.getOutputStream());
+				out.writeString("local_data return;");
+				int sent = 0;
+				for(TileCache.Rows[] payload : payloads) {
+					sent += payload[0].writeInside(out, lat1, lat2, lon1, lon2, DatabaseHelper.MAX + 1 - sent);
 				}
 			
 				// separation
-				out.print("----------");
+				out.writeString("----------");
 				
 				// Send the Recent Conditions
-				for(CurrentCondition cc : recentConditions) {
-					out.print(currentConditionToWeb(cc));
+				sent = 0;
+				for(TileCache.Rows[] payload : payloads) {
+					sent += payload[1].writeInside(out, lat1, lat2, lon1, lon2, DatabaseHelper.MAX + 1 - sent);
 				}
 				
 				out.close();
+			} else if (params.get("download")[0].equals("trend") && params.containsKey("userid")) {
+				// One phone's own trend, from its readings alone
+				String trend = dh.getUserTendency(params.get("userid")[0]);
+				response.setContentType("text/html");
+				PrintWriter out = response.getWriter();
+				out.print(trend + ";");
+				out.close();
+			} else if (params.get("download")[0].equals("trend")) {
+				// Rising, falling or steady over a map view, as trend|hPa per hour|readings;
+				double centerLat = Double.parseDouble(params.get("centerlat")[0]) / 1E6;
+				double centerLon = Double.parseDouble(params.get("centerlon")[0]) / 1E6;
+				double latSpan = Double.parseDouble(params.get("latspan")[0]) / 1E6;
+				double longSpan = Double.parseDouble(params.get("longspan")[0]) / 1E6;
+				
+				TendencyEngine.Tendency tendency = dh.getTendencyEngine().getTendency(
+						centerLat - latSpan / 2, centerLat + latSpan / 2,
+						centerLon - longSpan / 2, centerLon + longSpan / 2);
+				
+				response.setContentType("text/html");
+				PrintWriter out = response.getWriter();
+				out.print(tendency.getTrend() + "|" + tendency.getSlope() + "|" + tendency.getReadings() + ";");
+				out.close();
+			} else if (params.get("download")[0].equals("trend_map")) {
+				// The whole globe's trends, from the last background build
+				TrendMapJob.TrendMap trendMap = dh.getTrendMap();
+				response.setContentType("text/html");
+				if(trendMap == null) {
+					response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					PrintWriter out = response.getWriter();
+					out.write("The trend map isn't ready yet. Please try again later.");
+					out.close();
+				} else {
+					OutputStream out = response.getOutputStream();
+					out.write(trendMap.getPayload());
+					out.close();
+				}
 			} else if (params.get("download")[0].equals("full_delete_request")) {
 				String userID = params.get("userid")[0];
 				log.info("full delete request for: " + userID);
@@ -199,13 +547,17 @@ public class BarometerServlet extends HttpServlet {
 							long day = 1000*60*60*24;
 							lastDaySubmissions = dh.generateStatisticsByUserAndTime(userId, now-day);
 							
-							//percentile = dh.getUserPercentile(userId, totalSubmissions);
+							percentile = dh.getUserPercentile(userId);
 							String url = serverURL + "?export=true&userId=" + userId;
 							exportLink = "<a href='" + url + "' style='color:#33b5e5'>Download Your Recent Data (CSV)</a>";
 							exportLink += " (archive export temporarily disabled, coming back soon)";
 							
 							
-							additionalData = totalSubmissions + "<br/>" + lastDaySubmissions + "<br/>" + exportLink;
+							additionalData = totalSubmissions + "<br/>" + lastDaySubmissions + "<br/>";
+							if(percentile.length() > 0) {
+								additionalData += percentile + "<br/>";
+							}
+							additionalData += exportLink;
 						} else {
 							additionalData = "";
 						}
@@ -217,45 +569,105 @@ public class BarometerServlet extends HttpServlet {
 					
 					out.close();
 				}
+			} else if(params.get("statistics")[0].equals("plans")) {
+				// Whether the main queries can still use their indexes
+				response.setContentType("text/plain");
+				PrintWriter out = response.getWriter();
+				out.print(dh.checkQueryPlans());
+				out.close();
+			} else if(params.get("statistics")[0].equals("database")) {
+				// Connection pool usage
+				response.setContentType("text/plain");
+				PrintWriter out = response.getWriter();
+				out.print(dh.getPoolStatistics());
+				out.print("\n" + dh.getTileCache().toString());
+				out.print("\n" + dh.getTendencyEngine().toString());
+				out.print("\n" + dh.getHotArchive().toString());
+				if(ingestionQueue != null) {
+					out.print("\n" + ingestionQueue.toString());
+				}
+				out.close();
 			}
 			
 		} else if(params.containsKey("export")) {
 			String export = params.get("export")[0];
 			if(export.equals("true")) {
 				String id = params.get("userId")[0];
-				// give the user the CSV file
+				// give the user the CSV file, streamed straight from the database.
+				// No content length is set, so the container sends it chunked.
 				String headings = "Time,Longitude,Latitude,Reading";
-				String data = dh.getUserCSV(id);
-				String file = headings + "\n" + data;
 				
-				response.setContentType("text/html");
-				//response.setContentType("application/zip");
-				PrintWriter out = response.getWriter();
-				out.print(file); // entry
+				response.setContentType("text/csv");
+				response.setCharacterEncoding("UTF-8");
+				response.setHeader("Content-Disposition", "attachment; filename=pressurenet.csv");
+				OutputStream stream = response.getOutputStream();
+				String acceptEncoding = request.getHeader("Accept-Encoding");
+				if(acceptEncoding != null && acceptEncoding.contains("gzip")) {
+					response.setHeader("Content-Encoding", "gzip");
+					stream = new GZIPOutputStream(stream, 8192);
+				}
+				Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 8192);
+				out.write(headings + "\n");
+				int rows = dh.writeUserCSV(id, out);
+				if(rows < 0) {
+					out.write("no data");
+				}
 				out.close();
 				
 			}
 		} else if (params.containsKey("pndv")) {
 			String pndv = params.get("pndv")[0];
 			if (pndv.equals("buffer")) {
-				// PNDV is requesting recent buffered data. Send it!
+				// A consumer is pulling the readings it hasn't had yet. Each consumer
+				// has its own offset; an explicit offset re-reads from that point.
+				String consumer = "pndv";
+				if(params.containsKey("consumer")) {
+					consumer = params.get("consumer")[0];
+				}
+				if(!relay.isConsumer(consumer)) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "unknown consumer");
+					return;
+				}
+				long from = -1;
+				if(params.containsKey("offset")) {
+					try {
+						from = Long.parseLong(params.get("offset")[0]);
+					} catch(NumberFormatException nfe) {
+						response.sendError(HttpServletResponse.SC_BAD_REQUEST, "bad offset");
+						return;
+					}
+				}
+				RelayQueue.Batch batch = relay.read(consumer, from, relayBatchLimit);
 				
-				// Send the data dump inside the response
-				// Should be sent as CSV or XML probably.
-				// ...HTML for now
-				try {
+				response.setHeader("X-Relay-Next-Offset", Long.toString(batch.getNextOffset()));
+				// The text format is the default. Consumers that understand the
+				// binary batch ask for it with format=binary or the Accept header.
+				String accept = request.getHeader("Accept");
+				boolean binary = (params.containsKey("format") && params.get("format")[0].equals("binary"))
+						|| (accept != null && accept.contains(PndvBinaryWriter.CONTENT_TYPE));
+				if(binary) {
+					response.setContentType(PndvBinaryWriter.CONTENT_TYPE);
+					OutputStream stream = response.getOutputStream();
+					PndvBinaryWriter writer = new PndvBinaryWriter(stream);
+					for (BarometerReading br : batch.getReadings()) {
+						writer.write(br);
+					}
+					writer.finish();
+					// a failed write throws before we get here
+					relay.commit(consumer, batch.getNextOffset());
+					stream.close();
+				} else {
 					response.setContentType("text/plain");
 					PrintWriter out = response.getWriter();
-					for (BarometerReading br : bufferToPNDV) {
+					for (BarometerReading br : batch.getReadings()) {
 						out.print(barometerReadingToWebPNDV(br));
 					}
+					out.flush();
+					// Only move the consumer along once the readings have gone out
+					if(!out.checkError()) {
+						relay.commit(consumer, batch.getNextOffset());
+					}
 					out.close();
-					
-					// clear the buffer
-					bufferToPNDV.clear();
-				} catch (Exception e)
-				{
-					// ...
 				}
 			}
 		} else if(params.containsKey("current_condition")) {
@@ -272,22 +684,7 @@ public class BarometerServlet extends HttpServlet {
 		} else { 
 			try {
 				// This is #1.
-				BarometerReading br = getBarometerReadingFromParams(params);
-				
-				// Store result in database
-				dh.addReadingToDatabase(br);
-				
-				// Response
-				response.setContentType("text/html");
-				PrintWriter out = response.getWriter();
-				
-				out.close();
-				
-				// TO PNDV!
-				// Send the measurement to the distribution servers
-				// TODO: Re-enable
-				addToPNDV(br);
-				
+				submitReading(getBarometerReadingFromParams(params), response);
 			} catch(Exception e) {
 				log(e.getMessage());
 				response.setContentType("text/html");
@@ -299,6 +696,146 @@ public class BarometerServlet extends HttpServlet {
 		}
 	}
 	
+	// Store a submitted reading and pass it on to PNDV
+	private void submitReading(BarometerReading br, HttpServletResponse response) throws IOException {
+		if(br.getTime() > System.currentTimeMillis() + BarometerReading.MAX_CLOCK_AHEAD) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "time is in the future");
+			return;
+		}
+		// Store result in database
+		if(ingestionQueue != null) {
+			// Acknowledge now, the writers will batch it in shortly
+			if(!ingestionQueue.submit(br)) {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.setContentType("text/html");
+				PrintWriter out = response.getWriter();
+				out.write("The server is busy. Please try again later.");
+				out.close();
+				return;
+			}
+		} else {
+			dh.addReadingToDatabase(br);
+		}
+		
+		// Response
+		response.setContentType("text/html");
+		PrintWriter out = response.getWriter();
+		
+		out.close();
+		
+		// TO PNDV!
+		// Send the measurement to the distribution servers
+		addToPNDV(br);
+	}
+	
+	/**
+	 * Store a batch of readings and conditions, as sent by a phone that kept
+	 * them while it was offline. The body has one urlencoded record per line,
+	 * just like a single submission; conditions carry current_condition. The
+	 * batch is checked as a whole, then the good records are written in one
+	 * transaction. The response is accepted|rejected; followed by
+	 * line|error; for each record that was turned away. If the write fails
+	 * nothing is kept and the client gets a 503 to try the batch again.
+	 */
+	private void submitBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		SubmissionDecoder decoder = decoders.get();
+		SubmissionDecoder.Status status = decoder.readBatch(request.getInputStream(), request.getCharacterEncoding());
+		if(status != SubmissionDecoder.Status.OK) {
+			response.sendError(status == SubmissionDecoder.Status.TOO_LARGE
+					? HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE : HttpServletResponse.SC_BAD_REQUEST, status.toString());
+			return;
+		}
+		
+		ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
+		ArrayList<CurrentCondition> conditions = new ArrayList<CurrentCondition>();
+		StringBuilder rejected = new StringBuilder();
+		int rejectedCount = 0;
+		while(decoder.nextRecord()) {
+			if(readings.size() + conditions.size() + rejectedCount >= MAX_BATCH_RECORDS) {
+				response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "more than " + MAX_BATCH_RECORDS + " records");
+				return;
+			}
+			status = decoder.decodeRecord();
+			String error = null;
+			if(status == SubmissionDecoder.Status.OK) {
+				readings.add(decoder.toReading());
+			} else if(status == SubmissionDecoder.Status.NOT_A_READING) {
+				Map<String, String[]> record = decoder.getParameterMap();
+				if(record.containsKey("current_condition")) {
+					try {
+						conditions.add(getCurrentConditionFromParams(record));
+					} catch(RuntimeException e) {
+						error = "bad condition";
+					}
+				} else {
+					error = "not a reading or condition";
+				}
+			} else {
+				error = status + (decoder.getErrorField() != null ? " " + decoder.getErrorField() : "");
+			}
+			if(error != null) {
+				rejectedCount++;
+				rejected.append(decoder.getLineNumber()).append('|').append(error).append(';');
+			}
+		}
+		
+		if(!dh.addSubmissionsToDatabase(readings, conditions)) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		for(BarometerReading br : readings) {
+			addToPNDV(br);
+		}
+		if(rejectedCount > 0) {
+			log("batch of " + (readings.size() + conditions.size() + rejectedCount) + " had " + rejectedCount + " rejected");
+		}
+		response.setContentType("text/plain");
+		PrintWriter out = response.getWriter();
+		out.print((readings.size() + conditions.size()) + "|" + rejectedCount + ";");
+		out.print(rejected);
+		out.close();
+	}
+	
+	// Serialize the visible readings and conditions of one map tile. Rows keep
+	// their recorded position for clipping and are written with the fudged one.
+	private TileCache.Rows[] buildLocalDataTile(TileCache.Tile tile, long sinceWhen, long sinceWhenConditions) throws IOException {
+		ArrayList<BarometerReading> recentReadings = dh.getReadingsWithinTile(tile, sinceWhen);
+		ArrayList<CurrentCondition> recentConditions = dh.getConditionsWithinTile(tile, sinceWhenConditions);
+		
+		int count = recentReadings.size();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RowWriter writer = new RowWriter(bytes);
+		int[] ends = new int[count];
+		double[] latitudes = new double[count];
+		double[] longitudes = new double[count];
+		for(int i = 0; i < count; i++) {
+			BarometerReading br = recentReadings.get(i);
+			latitudes[i] = br.getLatitude();
+			longitudes[i] = br.getLongitude();
+			writer.writeReading(dh.fudgeGPS(br));
+			writer.flush();
+			ends[i] = bytes.size();
+		}
+		TileCache.Rows readings = new TileCache.Rows(bytes.toByteArray(), ends, latitudes, longitudes);
+		
+		count = recentConditions.size();
+		bytes = new ByteArrayOutputStream();
+		writer = new RowWriter(bytes);
+		ends = new int[count];
+		latitudes = new double[count];
+		longitudes = new double[count];
+		for(int i = 0; i < count; i++) {
+			CurrentCondition cc = recentConditions.get(i);
+			latitudes[i] = cc.getLatitude();
+			longitudes[i] = cc.getLongitude();
+			writer.writeCondition(dh.fudgeGPS(cc));
+			writer.flush();
+			ends[i] = bytes.size();
+		}
+		TileCache.Rows conditions = new TileCache.Rows(bytes.toByteArray(), ends, latitudes, longitudes);
+		return new TileCache.Rows[] {readings, conditions};
+	}
+	
 	// Prepare data to send through the web. Decoded by
 	// csvToBarometerReadings in the android app.
 	// Since some of the data has commas, CSV = BSV
@@ -4,7 +4,6 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 
 // Interface with Google's Charting API
@@ -13,7 +12,8 @@ public class ChartData {
 	private String chartCaption;
 	private String[] columns = {"Pressure"}; 
 	private ArrayList<RowInfo> rows = new ArrayList<RowInfo>();
-	private static final int MAX = 200;
+	// Most points a chart is given. DatabaseHelper downsamples to fit.
+	static final int MAX = 200;
 	
 	
 	public void addRow(double reading, long time) {
@@ -32,7 +32,6 @@ public class ChartData {
 		int numRows = this.getRows().size();
 		// fullWebPage += "data.addRows(" + numRows + ");";
 		// Print out row information
-		int i = 0;
 		long minTime = 31;
 		long maxTime = 0;
 		double minReading = 1500;
@@ -40,20 +39,17 @@ public class ChartData {
 		String rowAddString = "[";
 		Calendar now = Calendar.getInstance();
 		ArrayList<RowInfo> rows = this.getRows();
-		Collections.shuffle(rows);
-		boolean limitHit = false; // keep checking for min and max but stop adding values
+		NumberFormat nf = new DecimalFormat("##.##");
+		Calendar cal = Calendar.getInstance();
 		for(RowInfo ri : rows) {
-			i++;
 			Date date = new Date(ri.getTime());
 			
-			Calendar cal = Calendar.getInstance();
 			cal.setTime(date);
 			int dateInt = cal.get(Calendar.DAY_OF_MONTH);
 			int hourInt = cal.get(Calendar.HOUR_OF_DAY);
 
 			
 			double fraction = hourInt / 24.0;
-			NumberFormat nf = new DecimalFormat("##.##");
 			double timeToCalc = (dateInt + fraction); 
 			String plot = nf.format(timeToCalc) + "";
 
@@ -61,11 +57,9 @@ public class ChartData {
 			// reject the wrap, should instead wrap nicely
 			int limit = 7;
 			if(dateInt>now.get(Calendar.DAY_OF_MONTH)) {
-				i--;
 				continue;
 			}
 			if(dateInt<now.get(Calendar.DAY_OF_MONTH) - limit) {
-				i--;
 				continue;
 			}
 			
@@ -85,17 +79,7 @@ public class ChartData {
 			
 			String printReading = nf.format(ri.getReading());
 			
-			if(!limitHit) {
-				rowAddString += "[" + plot +"," + printReading + "],";
-			}
-			
-
-			// Temporary limit to test for performance improvement.
-			// If it speeds up, move this step to the sql query
-			if(i>MAX) {
-				limitHit = true;
-			}
-			
+			rowAddString += "[" + plot +"," + printReading + "],";
 		}
 		// remove trailing comma and end with bracket
 		if(rowAddString.endsWith(",")) {
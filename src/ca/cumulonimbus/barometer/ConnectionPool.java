@@ -0,0 +1,234 @@
+package ca.cumulonimbus.barometer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A small bounded pool of JDBC connections. Connections are opened lazily up
+ * to the pool size, handed out to one caller at a time and returned with
+ * release(). Callers that find the pool exhausted wait up to acquireTimeout.
+ *
+ * Keeps simple acquire/wait counters so we can see how contended the pool is.
+ */
+public class ConnectionPool {
+	private static String logName = "ca.cumulonimbus.barometer.ConnectionPool";
+	private static Logger log = Logger.getLogger(logName);
+
+	// Validation timeout in seconds for Connection.isValid
+	private static final int VALIDATION_TIMEOUT = 2;
+	// How long a waiting caller sleeps before checking whether a slot has freed up to open a new connection
+	private static final long WAIT_SLICE_MS = 50;
+
+	private final String url;
+	private final Properties props;
+	private final int size;
+	private final long acquireTimeoutMs;
+
+	private final ArrayBlockingQueue<Connection> idle;
+	private final AtomicInteger opened = new AtomicInteger(0);
+	private volatile boolean closed = false;
+
+	// Metrics
+	private final AtomicLong acquires = new AtomicLong(0);
+	private final AtomicLong waits = new AtomicLong(0);
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final AtomicLong totalWaitNanos = new AtomicLong(0);
+	private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+	public ConnectionPool(String url, Properties props, int size, long acquireTimeoutMs) {
+		this.url = url;
+		this.props = props;
+		this.size = Math.max(1, size);
+		this.acquireTimeoutMs = acquireTimeoutMs;
+		this.idle = new ArrayBlockingQueue<Connection>(this.size);
+	}
+
+	/**
+	 * Borrow a connection. Every connection handed out here must be given back
+	 * with release(), normally from a finally block.
+	 * @return an open connection in auto-commit mode
+	 * @throws SQLException if no connection could be opened or the wait timed out
+	 */
+	public Connection getConnection() throws SQLException {
+		if(closed) {
+			throw new SQLException("the database connection pool is closed");
+		}
+		acquires.incrementAndGet();
+
+		// Fast path: an idle connection is ready.
+		Connection conn = idle.poll();
+		if(conn == null) {
+			conn = openIfBelowLimit();
+		}
+		if(conn == null) {
+			// Pool exhausted. Wait for someone to give one back, or for a
+			// broken one to be discarded so there's room to open another.
+			waits.incrementAndGet();
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+			try {
+				while(conn == null) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						break;
+					}
+					conn = idle.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE_MS)), TimeUnit.NANOSECONDS);
+					if(conn == null) {
+						conn = openIfBelowLimit();
+					}
+				}
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted waiting for a database connection");
+			}
+			recordWait(System.nanoTime() - start);
+			if(conn == null) {
+				timeouts.incrementAndGet();
+				throw new SQLException("timed out waiting for a database connection after " + acquireTimeoutMs + "ms");
+			}
+		}
+
+		if(!isUsable(conn)) {
+			discard(conn);
+			conn = openIfBelowLimit();
+			if(conn == null) {
+				throw new SQLException("unable to replace a broken database connection");
+			}
+		}
+		return conn;
+	}
+
+	/**
+	 * Give a connection back to the pool. Safe to call with null. Connections
+	 * left in a transaction are rolled back and returned in auto-commit mode.
+	 * @param conn
+	 */
+	public void release(Connection conn) {
+		if(conn == null) {
+			return;
+		}
+		if(closed) {
+			discard(conn);
+			return;
+		}
+		try {
+			if(conn.isClosed()) {
+				discard(conn);
+				return;
+			}
+			if(!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			discard(conn);
+			return;
+		}
+		if(!idle.offer(conn)) {
+			discard(conn);
+		}
+		if(closed) {
+			// lost a race with close()
+			close();
+		}
+	}
+
+	// Close every idle connection. Borrowed connections are closed as they come back.
+	public void close() {
+		closed = true;
+		Connection conn;
+		while((conn = idle.poll()) != null) {
+			discard(conn);
+		}
+	}
+
+	private Connection openIfBelowLimit() throws SQLException {
+		while(true) {
+			int current = opened.get();
+			if(current >= size) {
+				return null;
+			}
+			if(opened.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		try {
+			return DriverManager.getConnection(url, props);
+		} catch(SQLException sqle) {
+			opened.decrementAndGet();
+			throw sqle;
+		}
+	}
+
+	private boolean isUsable(Connection conn) {
+		try {
+			return !conn.isClosed() && conn.isValid(VALIDATION_TIMEOUT);
+		} catch(SQLException sqle) {
+			return false;
+		}
+	}
+
+	private void discard(Connection conn) {
+		opened.decrementAndGet();
+		try {
+			conn.close();
+		} catch(SQLException sqle) {
+			// already gone
+		}
+	}
+
+	private void recordWait(long nanos) {
+		totalWaitNanos.addAndGet(nanos);
+		long max = maxWaitNanos.get();
+		while(nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getOpenConnections() {
+		return opened.get();
+	}
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	public long getAcquireCount() {
+		return acquires.get();
+	}
+
+	public long getWaitCount() {
+		return waits.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+	}
+
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "pool size: " + size + ", open: " + getOpenConnections() + ", idle: " + getIdleConnections() +
+				", acquires: " + getAcquireCount() + ", waits: " + getWaitCount() + ", timeouts: " + getTimeoutCount() +
+				", total wait: " + getTotalWaitMillis() + "ms, max wait: " + getMaxWaitMillis() + "ms";
+	}
+}
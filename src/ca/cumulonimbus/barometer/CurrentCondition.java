@@ -27,6 +27,30 @@ public class CurrentCondition {
 	private String sharing_policy;
 	private String user_comment;
 	
+	public CurrentCondition() {
+		
+	}
+	
+	public CurrentCondition(CurrentCondition other) {
+		this.time = other.time;
+		this.tzoffset = other.tzoffset;
+		this.location_type = other.location_type;
+		this.latitude = other.latitude;
+		this.longitude = other.longitude;
+		this.location_accuracy = other.location_accuracy;
+		this.general_condition = other.general_condition;
+		this.windy = other.windy;
+		this.fog_thickness = other.fog_thickness;
+		this.cloud_type = other.cloud_type;
+		this.precipitation_type = other.precipitation_type;
+		this.precipitation_amount = other.precipitation_amount;
+		this.precipitation_unit = other.precipitation_unit;
+		this.thunderstorm_intensity = other.thunderstorm_intensity;
+		this.user_id = other.user_id;
+		this.sharing_policy = other.sharing_policy;
+		this.user_comment = other.user_comment;
+	}
+	
 	@Override
 	public String toString() {
 		return user_id + ", " + time + ", " + tzoffset + ", " + latitude + ", " + longitude + ", " + general_condition + "," + windy + ", " + 
@@ -1,103 +1,272 @@
 package ca.cumulonimbus.barometer;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class DatabaseHelper {
 
-	// Database objects
-	Connection db;
-	PreparedStatement pstmt;
-	boolean connected = false;
+	// Database objects. Each call borrows its own connection and statements
+	// from the pool so request threads never share JDBC state.
+	private ConnectionPool pool;
 
-	private static final int MAX = 30;
+	static final int MAX = 30;
+	private static final int DEFAULT_POOL_SIZE = 10;
+	private static final long POOL_ACQUIRE_TIMEOUT = 10 * 1000;
+	// How far back per-user charts go
+	private static final int CHART_DAYS = 8;
+	// Rows per round trip when streaming large results through a cursor
+	private static final int CURSOR_FETCH_SIZE = 1000;
 	private static String logName = "ca.cumulonimbus.barometer.DatabaseHelper";
 	private static Logger log = Logger.getLogger(logName);
 
 	private static double TENDENCY_HOURS = 12;
+	// hPa over three hours below which pressure is steady
 	private static double TENDENCY_DELTA = 0.5;
+	private static final int TENDENCY_MIN_READINGS = 4;
 	
+	// Latest reading and condition per user, for map queries
+	private static final long INDEX_RETENTION = 1000 * 60 * 60 * 24;
+	private final SpatialIndex<BarometerReading> readingIndex = new SpatialIndex<BarometerReading>(new SpatialIndex.Locator<BarometerReading>() {
+		public String getId(BarometerReading br) { return br.getAndroidId(); }
+		public double getLatitude(BarometerReading br) { return br.getLatitude(); }
+		public double getLongitude(BarometerReading br) { return br.getLongitude(); }
+		public double getTime(BarometerReading br) { return br.getTime(); }
+		public BarometerReading copy(BarometerReading br) { return new BarometerReading(br); }
+	}, INDEX_RETENTION);
+	private final SpatialIndex<CurrentCondition> conditionIndex = new SpatialIndex<CurrentCondition>(new SpatialIndex.Locator<CurrentCondition>() {
+		public String getId(CurrentCondition cc) { return cc.getUser_id(); }
+		public double getLatitude(CurrentCondition cc) { return cc.getLatitude(); }
+		public double getLongitude(CurrentCondition cc) { return cc.getLongitude(); }
+		public double getTime(CurrentCondition cc) { return cc.getTime(); }
+		public CurrentCondition copy(CurrentCondition cc) { return new CurrentCondition(cc); }
+	}, INDEX_RETENTION);
+	
+	// Serialized local_data tiles, dropped when something new lands in them
+	private static final int TILE_CACHE_SIZE = 5000;
+	private static final long TILE_CACHE_BUCKET = 30 * 1000;
+	private final TileCache tileCache = new TileCache(TILE_CACHE_SIZE, TILE_CACHE_BUCKET);
+	
+	// Per-user submission counters for the statistics page
+	private final SubmissionStatistics statistics = new SubmissionStatistics();
+	
+	// Where each user's submission count ranks among all users
+	private final PercentileRanking ranking = new PercentileRanking(this);
+	
+	// Creates and retires archive partitions; null until started
+	private ArchiveMaintenance archiveMaintenance;
+	
+	// Stored readings on local disk for fast replay; null unless started
+	private volatile ArchiveLog archiveLog;
+	
+	// Trend for every window of the globe, rebuilt from the archive in the background
+	private final TrendMapJob trendMap = new TrendMapJob(this, TENDENCY_MIN_READINGS);
+	
+	// Rising, falling or steady for any map view, kept current by the write path
+	private final TendencyEngine tendency = new TendencyEngine(TENDENCY_HOURS, TENDENCY_DELTA / 3, TENDENCY_MIN_READINGS);
+	
+	// The last CHART_DAYS of the archive, plus a day to spare, in primitive columns
+	private static final long HOT_ARCHIVE_RETENTION = (CHART_DAYS + 1) * 24L * 60 * 60 * 1000;
+	private final HotArchive hotArchive = new HotArchive(Integer.getInteger("barometer.hotArchive.rows", 1000000), HOT_ARCHIVE_RETENTION);
+	
+	
+	// Insert the latest reading into Readings, or replace the user's older one, and archive
+	// it in the same statement. Readings older than what we already hold for the user
+	// are archived but don't replace the latest value.
+	private static final String UPSERT_READING_SQL = "WITH latest AS (" +
+			"INSERT INTO Readings (latitude, longitude, daterecorded, reading, tzoffset, text, privacy, client_key, location_accuracy, reading_accuracy) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+			"ON CONFLICT (text) DO UPDATE SET latitude=EXCLUDED.latitude, longitude=EXCLUDED.longitude, daterecorded=EXCLUDED.daterecorded, reading=EXCLUDED.reading, tzoffset=EXCLUDED.tzoffset, " +
+			"privacy=EXCLUDED.privacy, client_key=EXCLUDED.client_key, location_accuracy=EXCLUDED.location_accuracy, reading_accuracy=EXCLUDED.reading_accuracy " +
+			"WHERE Readings.daterecorded <= EXCLUDED.daterecorded) " +
+			"INSERT INTO archive (latitude, longitude, daterecorded, reading, tzoffset, text, privacy, client_key, location_accuracy, reading_accuracy) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 	
 	/**
-	 * Add a barometer reading to the database. Before inserting a new row, check to see if
-	 * this user has submitted an entry before. If so, update the row.
+	 * Add a barometer reading to the database. Readings keeps one row per user, so the
+	 * reading replaces the user's existing row if there is one. Either way it is added
+	 * to the archive. This is one statement and one round trip.
 	 * @param reading
 	 * @return
 	 */
 	public boolean addReadingToDatabase(BarometerReading reading) {
-		if(!connected) {
-			connectToDatabase();
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			pstmt = db.prepareStatement(UPSERT_READING_SQL);
+			setReadingParameters(pstmt, reading, 0);
+			setReadingParameters(pstmt, reading, 10);
+			pstmt.execute();
+			readingStored(reading);
+			return true;
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return false;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
+	}
+	
+	/**
+	 * Add a batch of barometer readings in one transaction, as a single JDBC batch
+	 * of the same upsert addReadingToDatabase uses.
+	 * @param batch
+	 * @return false if nothing was committed
+	 */
+	public boolean addReadingsToDatabase(List<BarometerReading> batch) {
+		if(batch.isEmpty()) {
+			return true;
+		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			// Check for existing ID in database
-			ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
-			pstmt = db.prepareStatement("SELECT * FROM Readings WHERE text='" + reading.getAndroidId() + "'");
-			ResultSet rs = pstmt.executeQuery();
-			while(rs.next()) {
-				readings.add(resultSetToBarometerReading(rs));
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			pstmt = db.prepareStatement(UPSERT_READING_SQL);
+			for(BarometerReading reading : batch) {
+				setReadingParameters(pstmt, reading, 0);
+				setReadingParameters(pstmt, reading, 10);
+				pstmt.addBatch();
 			}
-			log.info("adding a reading. existing entries for id: " + readings.size());
-			if(readings.size() > 0) {
-				// Exists. Update.
-				pstmt = db.prepareStatement("UPDATE Readings SET latitude=?, longitude=?, daterecorded=?, reading=?, tzoffset=?, privacy=?, client_key=?, location_accuracy=?, reading_accuracy=? WHERE text=?");
-				pstmt.setDouble(1, reading.getLatitude());
-				pstmt.setDouble(2, reading.getLongitude());
-				pstmt.setDouble(3, reading.getTime());
-				pstmt.setDouble(4, reading.getReading());
-				pstmt.setInt(5, reading.getTimeZoneOffset());
-				pstmt.setString(6, reading.getSharingPrivacy());
-				pstmt.setString(7, reading.getClientKey());
-				pstmt.setFloat(8, reading.getLocationAccuracy());
-				pstmt.setFloat(9, reading.getReadingAccuracy());
-				pstmt.setString(10, reading.getAndroidId());
-				pstmt.execute();
-				//log.info("updating " + reading.getAndroidId() + " to " + reading.getReading());
-			} else {
-				// Doesn't exist. Insert a new row.
-				pstmt = db.prepareStatement("INSERT INTO Readings (latitude, longitude, daterecorded, reading, tzoffset, text, privacy, client_key, location_accuracy, reading_accuracy) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-				pstmt.setDouble(1, reading.getLatitude());
-				pstmt.setDouble(2, reading.getLongitude());
-				pstmt.setDouble(3, reading.getTime());
-				pstmt.setDouble(4, reading.getReading());
-				pstmt.setInt(5, reading.getTimeZoneOffset());
-				pstmt.setString(6, reading.getAndroidId());
-				pstmt.setString(7, reading.getSharingPrivacy());
-				pstmt.setString(8, reading.getClientKey());
-				pstmt.setFloat(9, reading.getLocationAccuracy());
-				pstmt.setFloat(10, reading.getReadingAccuracy());
-				pstmt.execute();
-				//log.info("inserting new " + reading.getAndroidId());
+			pstmt.executeBatch();
+			db.commit();
+			for(BarometerReading reading : batch) {
+				readingStored(reading);
 			}
-			
-			// Either way, add it to the archive.
-			pstmt = db.prepareStatement("INSERT INTO archive (latitude, longitude, daterecorded, reading, tzoffset, text, privacy, client_key, location_accuracy, reading_accuracy) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-			pstmt.setDouble(1, reading.getLatitude());
-			pstmt.setDouble(2, reading.getLongitude());
-			pstmt.setDouble(3, reading.getTime());
-			pstmt.setDouble(4, reading.getReading());
-			pstmt.setInt(5, reading.getTimeZoneOffset());
-			pstmt.setString(6, reading.getAndroidId());
-			pstmt.setString(7, reading.getSharingPrivacy());
-			pstmt.setString(8, reading.getClientKey());
-			pstmt.setFloat(9, reading.getLocationAccuracy());
-			pstmt.setFloat(10, reading.getReadingAccuracy());
-			pstmt.execute();
-			//log.info("archiving " + reading.getAndroidId());
-			
 			return true;
 		} catch(SQLException sqle) {
-			log.info(sqle.getMessage());
+			log.info("batch of " + batch.size() + " failed: " + sqle.getMessage());
+			return false;
+		} finally {
+			closeStatement(pstmt);
+			// the pool rolls back anything left uncommitted
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Add a client's batch of readings and conditions in one transaction, each
+	 * kind as a single JDBC batch of the usual upsert.
+	 * @param readings
+	 * @param conditions
+	 * @return false if nothing was committed
+	 */
+	public boolean addSubmissionsToDatabase(List<BarometerReading> readings, List<CurrentCondition> conditions) {
+		if(readings.isEmpty() && conditions.isEmpty()) {
+			return true;
+		}
+		Connection db = null;
+		PreparedStatement readingStmt = null;
+		PreparedStatement conditionStmt = null;
+		try {
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			if(!readings.isEmpty()) {
+				readingStmt = db.prepareStatement(UPSERT_READING_SQL);
+				for(BarometerReading reading : readings) {
+					setReadingParameters(readingStmt, reading, 0);
+					setReadingParameters(readingStmt, reading, 10);
+					readingStmt.addBatch();
+				}
+				readingStmt.executeBatch();
+			}
+			if(!conditions.isEmpty()) {
+				conditionStmt = db.prepareStatement(UPSERT_CONDITION_SQL);
+				for(CurrentCondition condition : conditions) {
+					setConditionParameters(conditionStmt, condition, 0);
+					setConditionParameters(conditionStmt, condition, 17);
+					conditionStmt.addBatch();
+				}
+				conditionStmt.executeBatch();
+			}
+			db.commit();
+			for(BarometerReading reading : readings) {
+				readingStored(reading);
+			}
+			for(CurrentCondition condition : conditions) {
+				conditionStored(condition);
+			}
+			return true;
+		} catch(SQLException sqle) {
+			log.info("submission batch of " + readings.size() + " readings and " + conditions.size()
+					+ " conditions failed: " + sqle.getMessage());
 			return false;
+		} finally {
+			closeStatement(readingStmt);
+			closeStatement(conditionStmt);
+			// the pool rolls back anything left uncommitted
+			pool.release(db);
+		}
+	}
+	
+	// Keep the in-memory views current once a reading is safely in the database
+	private void readingStored(BarometerReading reading) {
+		readingIndex.put(reading);
+		statistics.recordSubmission(reading.getAndroidId(), reading.getTime());
+		ranking.recordSubmission(reading.getAndroidId());
+		tendency.add(reading);
+		hotArchive.add(reading);
+		ArchiveLog archiveLog = this.archiveLog;
+		if(archiveLog != null) {
+			try {
+				archiveLog.append(reading);
+			} catch(IOException ioe) {
+				log.info("archive log append failed: " + ioe.getMessage());
+			}
 		}
+		tileCache.invalidate(reading.getLatitude(), reading.getLongitude());
+	}
+	
+	private void conditionStored(CurrentCondition condition) {
+		conditionIndex.put(condition);
+		tileCache.invalidate(condition.getLatitude(), condition.getLongitude());
+	}
+	
+	public TileCache getTileCache() {
+		return tileCache;
+	}
+	
+	public HotArchive getHotArchive() {
+		return hotArchive;
+	}
+	
+	public TendencyEngine getTendencyEngine() {
+		return tendency;
+	}
+	
+	// Column order shared by the Readings and archive inserts, starting after offset
+	private void setReadingParameters(PreparedStatement pstmt, BarometerReading reading, int offset) throws SQLException {
+		pstmt.setDouble(offset + 1, reading.getLatitude());
+		pstmt.setDouble(offset + 2, reading.getLongitude());
+		pstmt.setLong(offset + 3, Math.round(reading.getTime()));
+		pstmt.setDouble(offset + 4, reading.getReading());
+		pstmt.setInt(offset + 5, reading.getTimeZoneOffset());
+		pstmt.setString(offset + 6, reading.getAndroidId());
+		pstmt.setString(offset + 7, reading.getSharingPrivacy());
+		pstmt.setString(offset + 8, reading.getClientKey());
+		pstmt.setFloat(offset + 9, reading.getLocationAccuracy());
+		pstmt.setFloat(offset + 10, reading.getReadingAccuracy());
 	}
 	
 	public class UserCollection {
@@ -134,52 +303,141 @@ public class DatabaseHelper {
 		}
 	}
 	
-	// Loop through the archive, and split out useful data into User Collections
+	/**
+	 * Receives one user's readings at a time from forEachUserCollection.
+	 */
+	public interface UserCollectionHandler {
+		void handle(UserCollection user);
+	}
+	
+	// Loop through the archive, and split out useful data into User Collections.
+	// Users come back in the order they first appear in the archive.
 	public ArrayList<UserCollection> getUCFromArchive(ArrayList<BarometerReading> archive) {
-		ArrayList<UserCollection> users = new ArrayList<UserCollection>();
+		LinkedHashMap<String, UserCollection> users = new LinkedHashMap<String, UserCollection>();
 		
 		// Loop through the archive, and split out useful data.
 		for(BarometerReading single : archive) {
 			String id = single.getAndroidId();
-			boolean exists = false;
-			for(UserCollection user : users) {
-				if(user.getId().equals(id)) {
-					// User exists in collection. Add the entry there.
-					user.addReading(single);
-					exists = true;
-				}
-			}
-			if(!exists) {
+			UserCollection user = users.get(id);
+			if(user != null) {
+				// User exists in collection. Add the entry there.
+				user.addReading(single);
+			} else {
 				// User not in the collection. Add.
-				users.add(new UserCollection(single, id));
+				users.put(id, new UserCollection(single, id));
 			}
 		}
 		
-		return users;
+		return new ArrayList<UserCollection>(users.values());
+	}
+	
+	/**
+	 * Walk the archive since sinceWhen one user at a time, for analytics over every user.
+	 * Rows are read through a cursor ordered by user then time, and each user's
+	 * collection is handed over as soon as it is complete, so only one user's readings
+	 * are in memory at once.
+	 * @param sinceWhen
+	 * @param units
+	 * @param handler
+	 * @return the number of users handed over, or -1 if the query failed
+	 */
+	public int forEachUserCollection(long sinceWhen, String units, UserCollectionHandler handler) {
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			pstmt = db.prepareStatement("select * from archive where daterecorded > ? order by text, daterecorded");
+			pstmt.setFetchSize(CURSOR_FETCH_SIZE);
+			pstmt.setLong(1, sinceWhen);
+			ResultSet rs = pstmt.executeQuery();
+			PressureUnit unit = PressureUnit.parse(units);
+			int users = 0;
+			UserCollection current = null;
+			while(rs.next()) {
+				BarometerReading br = resultSetToBarometerReading(rs, unit);
+				if(current == null || !current.getId().equals(br.getAndroidId())) {
+					if(current != null) {
+						handler.handle(current);
+						users++;
+					}
+					current = new UserCollection(br.getAndroidId());
+				}
+				current.addReading(br);
+			}
+			if(current != null) {
+				handler.handle(current);
+				users++;
+			}
+			db.commit();
+			return users;
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return -1;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
 	}
 	
 	public boolean deleteUserData(String userID) {
-		if(!connected) {
-			connectToDatabase();
+		readingIndex.remove(userID);
+		conditionIndex.remove(userID);
+		tileCache.clear();
+		statistics.remove(userID);
+		ranking.remove(userID);
+		tendency.remove(userID);
+		hotArchive.remove(userID);
+		ArchiveLog archiveLog = this.archiveLog;
+		if(archiveLog != null) {
+			try {
+				archiveLog.remove(userID);
+			} catch(IOException ioe) {
+				log.info("archive log delete failed: " + ioe.getMessage());
+			}
 		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			pstmt = db.prepareStatement("delete from readings where text=?");
 			pstmt.setString(1, userID);
 			boolean deletedFromReadings = pstmt.execute();
+			closeStatement(pstmt);
 			pstmt = db.prepareStatement("delete from archive where text=?");
 			pstmt.setString(1, userID);
 			boolean deletedFromArchive = pstmt.execute();
+			closeStatement(pstmt);
 			pstmt = db.prepareStatement("delete from currentcondition where user_id=?");
 			pstmt.setString(1, userID);
 			boolean deletedFromCC = pstmt.execute();
+			closeStatement(pstmt);
 			pstmt = db.prepareStatement("delete from currentconditionarchive where user_id=?");
 			pstmt.setString(1, userID);
 			boolean deletedFromCCA = pstmt.execute();
+			closeStatement(pstmt);
+			// Partitions kept in cold storage are no longer part of the archive tables
+			for(String partition : getDetachedArchivePartitions(db, "archive")) {
+				pstmt = db.prepareStatement("delete from " + partition + " where text=?");
+				pstmt.setString(1, userID);
+				pstmt.execute();
+				closeStatement(pstmt);
+			}
+			for(String partition : getDetachedArchivePartitions(db, "currentconditionarchive")) {
+				pstmt = db.prepareStatement("delete from " + partition + " where user_id=?");
+				pstmt.setString(1, userID);
+				pstmt.execute();
+				closeStatement(pstmt);
+			}
+			pstmt = null;
 			if(deletedFromReadings && deletedFromArchive && deletedFromCC && deletedFromCCA) {
 				return true;
 			}
 		} catch(SQLException e) {
 			log.info(e.getMessage());
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 		
 		
@@ -189,71 +447,188 @@ public class DatabaseHelper {
 	// use Google Charts
 	public String getChartFromSingleUser(String userId, long sinceWhen, String units) {
 		String html = "";
-		ArrayList<UserCollection> ucs = getReadingsByUserAndTime(userId, sinceWhen, "mbar");
-		if(ucs.size()==1) {
-			UserCollection uc = ucs.get(0);
+		ArrayList<BarometerReading> readings = getDownsampledReadings(userId, sinceWhen, ChartData.MAX);
+		if(readings != null && readings.size() > 0) {
+			// The points are in millibars; convert them all at once
+			double[] values = new double[readings.size()];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = readings.get(i).getReading();
+			}
+			PressureUnit.parse(units).fromMbar(values, values, values.length);
 			ChartData cd = new ChartData("Pressure over Time");
-			for(BarometerReading br : uc.getAllReadings()) {
-				cd.addRow(br.getReading(), (long)br.getTime());
+			for(int i = 0; i < values.length; i++) {
+				cd.addRow(values[i], (long)readings.get(i).getTime());
 			}
 			html = cd.getChartWebPage();
 		} else {
-			return "Error. Invalid data returned from server. Size is " + ucs.size() + " for user " + userId + " since " + sinceWhen;
+			int size = (readings == null) ? 0 : readings.size();
+			return "Error. Invalid data returned from server. Size is " + size + " for user " + userId + " since " + sinceWhen;
 		}
 		return html;
 	}
 	
+	/**
+	 * Reduce a user's readings since sinceWhen to at most maxPoints in the database. The
+	 * window is split into maxPoints / 2 equal time buckets and each bucket gives its lowest
+	 * and highest reading at the bucket's mean time, so peaks and troughs survive. The
+	 * window never starts more than CHART_DAYS ago; the chart doesn't show older data.
+	 * @param userId
+	 * @param sinceWhen
+	 * @param maxPoints
+	 * @return readings with only time and reading set, oldest first
+	 */
+	public ArrayList<BarometerReading> getDownsampledReadings(String userId, long sinceWhen, int maxPoints) {
+		long now = System.currentTimeMillis();
+		long start = Math.max(sinceWhen, now - CHART_DAYS * 24L * 60 * 60 * 1000);
+		int buckets = Math.max(1, maxPoints / 2);
+		double bucketWidth = Math.max(1, (now - start) / (double)buckets);
+		
+		ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
+		int[] counts = new int[buckets + 1];
+		double[] timeSums = new double[counts.length];
+		double[] lows = new double[counts.length];
+		double[] highs = new double[counts.length];
+		if(hotArchive.bucketsForUser(userId, start, bucketWidth, counts, timeSums, lows, highs)) {
+			for(int bucket = 0; bucket < counts.length; bucket++) {
+				if(counts[bucket] > 0) {
+					double time = timeSums[bucket] / counts[bucket];
+					readings.add(chartPoint(userId, time, lows[bucket]));
+					if(highs[bucket] != lows[bucket]) {
+						readings.add(chartPoint(userId, time, highs[bucket]));
+					}
+				}
+			}
+			return readings;
+		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("select floor((daterecorded - ?) / ?) as bucket, avg(daterecorded) as t, min(reading) as low, max(reading) as high " +
+					"from archive where text=? and daterecorded > ? group by bucket order by bucket");
+			pstmt.setLong(1, start);
+			pstmt.setDouble(2, bucketWidth);
+			pstmt.setString(3, userId);
+			pstmt.setLong(4, start);
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				double time = rs.getDouble("t");
+				double low = rs.getDouble("low");
+				double high = rs.getDouble("high");
+				readings.add(chartPoint(userId, time, low));
+				if(high != low) {
+					readings.add(chartPoint(userId, time, high));
+				}
+			}
+			return readings;
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	private BarometerReading chartPoint(String userId, double time, double reading) {
+		BarometerReading br = new BarometerReading();
+		br.setAndroidId(userId);
+		br.setTime(time);
+		br.setReading(reading);
+		return br;
+	}
+	
 	// Get all a user's info and return it in CSV
 	public String getUserCSV(String userId) {
-		if(!connected) {
-			connectToDatabase();
+		StringWriter csv = new StringWriter();
+		try {
+			if(writeUserCSV(userId, csv) < 0) {
+				return "no data";
+			}
+		} catch(IOException ioe) {
+			return "no data";
 		}
+		return csv.toString();
+	}
+	
+	/**
+	 * Write a user's whole archive as CSV rows, oldest first. Rows are fetched through a
+	 * cursor a page at a time and written as they arrive, so memory use doesn't grow
+	 * with the size of the archive.
+	 * @param userId
+	 * @param out
+	 * @return the number of rows written, or -1 if the query failed
+	 * @throws IOException if writing to out fails
+	 */
+	public int writeUserCSV(String userId, Writer out) throws IOException {
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			pstmt = db.prepareStatement("select * from archive where text=? order by daterecorded");
-			
+			db = pool.getConnection();
+			// The driver only streams with a fetch size inside a transaction
+			db.setAutoCommit(false);
+			pstmt = db.prepareStatement("select daterecorded, latitude, longitude, reading from archive where text=? order by daterecorded");
+			pstmt.setFetchSize(CURSOR_FETCH_SIZE);
 			pstmt.setString(1, userId);
 			ResultSet rs = pstmt.executeQuery();
-			String csv = "";
+			DateFormat dateFormat = DateFormat.getDateTimeInstance();
+			Date d = new Date();
+			int rows = 0;
 			while(rs.next()) {
-				BarometerReading current = resultSetToBarometerReading(rs, "mbar");
-				Date d = new Date((long)current.getTime());
-				csv += d.toLocaleString() + "," + current.getLatitude() + "," + current.getLongitude() + "," + current.getReading() + "\n";
-			} 
-			return csv;
+				d.setTime((long)rs.getDouble("daterecorded"));
+				out.write(dateFormat.format(d));
+				out.write(',');
+				out.write(Double.toString(rs.getDouble("latitude")));
+				out.write(',');
+				out.write(Double.toString(rs.getDouble("longitude")));
+				out.write(',');
+				out.write(Double.toString(rs.getDouble("reading")));
+				out.write('\n');
+				rows++;
+			}
+			db.commit();
+			return rows;
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
-			return "no data";
+			return -1;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
-		
 	}
 	
 	// Return a set of useful information from a single user
 	// All users, all time = (null,0L). Return the data chronologically
 	public ArrayList<UserCollection> getReadingsByUserAndTime(String userId, long sinceWhen, String units) {
 		ArrayList<UserCollection> uc = new ArrayList<UserCollection>();
-		if(!connected) {
-			connectToDatabase();
-		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			if(userId != null) {
 				// Single user
 				
 				pstmt = db.prepareStatement("select * from archive where text=? and daterecorded >? order by daterecorded");
+				pstmt.setString(1, userId);
+				pstmt.setLong(2, sinceWhen);
 			} else {
 				// All users
 				pstmt = db.prepareStatement("select * from archive where daterecorded > ? order by daterecorded");
+				pstmt.setLong(1, sinceWhen);
 			}
-			pstmt.setString(1, userId);
-			pstmt.setLong(2, sinceWhen);
 			ResultSet rs = pstmt.executeQuery();
+			PressureUnit unit = PressureUnit.parse(units);
 			ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
 			while(rs.next()) {
-				readings.add(resultSetToBarometerReading(rs, units));
+				readings.add(resultSetToBarometerReading(rs, unit));
 			}
 			uc = getUCFromArchive(readings);
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
 			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 		
 		return uc;
@@ -262,40 +637,181 @@ public class DatabaseHelper {
 	// Return a set of useful information from a single user
 	public String generateStatisticsByUserAndTime(String userId, long sinceWhen) {
 		String stats = "";
-		if(!connected) {
-			connectToDatabase();
+		long count = getSubmissionCount(userId, sinceWhen);
+		if(count < 0) {
+			return "error";
+		}
+		if(sinceWhen==0) {
+			//stats = "Your total readings: " + count;
+		} else {
+			stats = "Readings in the last day: " + count;
+		}
+		return stats;
+	}
+	
+	/**
+	 * How many readings a user has submitted since sinceWhen (0 for all time). Answered
+	 * from the user's cached counters when the window allows, otherwise with a count query.
+	 * @return the count, or -1 if the database couldn't be reached
+	 */
+	public long getSubmissionCount(String userId, long sinceWhen) {
+		SubmissionStatistics.UserCounts counts = getSubmissionCounts(userId);
+		if(counts != null) {
+			long count = counts.countSince(sinceWhen, System.currentTimeMillis());
+			if(count >= 0) {
+				return count;
+			}
+		}
+		long count = hotArchive.countSince(userId, sinceWhen);
+		if(count >= 0) {
+			return count;
 		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			pstmt = db.prepareStatement("select * from archive where text=? and daterecorded > ?");
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("select count(*) from archive where text=? and daterecorded > ?");
 			pstmt.setString(1, userId);
 			pstmt.setLong(2, sinceWhen);
 			ResultSet rs = pstmt.executeQuery();
-			ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
+			rs.next();
+			return rs.getLong(1);
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return -1;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * A user's submission counters: total, first and last submission time, and hourly
+	 * counts for the last two days. Loaded with aggregate queries the first time and
+	 * kept current by the write path after that.
+	 * @return the counters, or null if they couldn't be loaded
+	 */
+	public SubmissionStatistics.UserCounts getSubmissionCounts(String userId) {
+		SubmissionStatistics.UserCounts counts = statistics.get(userId);
+		if(counts != null) {
+			return counts;
+		}
+		long newestHour = System.currentTimeMillis() / SubmissionStatistics.HOUR;
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("select count(*), min(daterecorded), max(daterecorded) from archive where text=?");
+			pstmt.setString(1, userId);
+			ResultSet rs = pstmt.executeQuery();
+			rs.next();
+			counts = new SubmissionStatistics.UserCounts(rs.getLong(1), rs.getDouble(2), rs.getDouble(3), newestHour);
+			closeStatement(pstmt);
+			
+			pstmt = db.prepareStatement("select floor(daterecorded / ?) as hour, count(*) from archive where text=? and daterecorded >= ? group by hour");
+			pstmt.setLong(1, SubmissionStatistics.HOUR);
+			pstmt.setString(2, userId);
+			pstmt.setLong(3, (newestHour - SubmissionStatistics.HOURS + 1) * SubmissionStatistics.HOUR);
+			rs = pstmt.executeQuery();
 			while(rs.next()) {
-				readings.add(resultSetToBarometerReading(rs));
+				counts.addHourly(rs.getLong(1), rs.getInt(2));
 			}
-			if(sinceWhen==0) {
-				//stats = "Your total readings: " + readings.size();
-			} else {
-				// TODO: HACK! Fix this to give the correct time. Right now we only
-				// call this function with sinceWhen = an hour, but that will change.
-				stats = "Readings in the last day: " + readings.size();
+			return statistics.load(userId, counts);
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Readings per day for a user since sinceWhen, keyed by the start of the day (UTC, in ms).
+	 * @return the histogram in day order, or null if the query failed
+	 */
+	public LinkedHashMap<Long, Long> getDailySubmissionHistogram(String userId, long sinceWhen) {
+		long day = 1000 * 60 * 60 * 24;
+		LinkedHashMap<Long, Long> histogram = new LinkedHashMap<Long, Long>();
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("select floor(daterecorded / ?) as day, count(*) from archive where text=? and daterecorded > ? group by day order by day");
+			pstmt.setLong(1, day);
+			pstmt.setString(2, userId);
+			pstmt.setLong(3, sinceWhen);
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				histogram.put(rs.getLong(1) * day, rs.getLong(2));
 			}
-
-			
-			return stats;
+			return histogram;
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
-			return "error";
+			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Every user's total number of archived readings, from one GROUP BY over the archive.
+	 * Used to (re)build the percentile ranking in the background.
+	 * @return the totals, or null if the query failed
+	 */
+	public HashMap<String, Long> getSubmissionCountsByUser() {
+		HashMap<String, Long> counts = new HashMap<String, Long>();
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			pstmt = db.prepareStatement("select text, count(*) from archive group by text");
+			pstmt.setFetchSize(CURSOR_FETCH_SIZE);
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				counts.put(rs.getString(1), rs.getLong(2));
+			}
+			db.commit();
+			return counts;
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	// Where this user's submission count places them among all users, for the statistics page
+	public String getUserPercentile(String userId) {
+		double percentile = ranking.getPercentile(userId);
+		if(percentile < 0) {
+			return "";
 		}
+		return "You've sent more readings than " + Math.round(percentile) + "% of pressureNET users";
+	}
+	
+	public void startRanking() {
+		ranking.start();
+	}
+	
+	public void startTrendMap() {
+		trendMap.start();
+	}
+	
+	// The latest trend map, or null until the first one is built
+	public TrendMapJob.TrendMap getTrendMap() {
+		return trendMap.getSnapshot();
 	}
 	
 	// Return a set of useful information from only recent data in the archive
 	public String generateRecentStatisticsFromArchive(String days) {
-		if(!connected) {
-			connectToDatabase();
-		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			pstmt = db.prepareStatement("select * from archive");
 			ResultSet rs = pstmt.executeQuery();
 			while(rs.next()) {
@@ -304,6 +820,9 @@ public class DatabaseHelper {
 		
 		} catch(SQLException sqle) {
 			
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 		
 		return "Service not yet implemented.";
@@ -312,10 +831,10 @@ public class DatabaseHelper {
 	// Return a set of useful information from all the data in the archive
 	public ArrayList<BarometerReading> getRecentArchive() {
 		ArrayList<BarometerReading> archive = new ArrayList<BarometerReading>();
-		if(!connected) {
-			connectToDatabase();
-		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			pstmt = db.prepareStatement("select * from archive order by daterecorded limit 1000");
 			ResultSet rs = pstmt.executeQuery();
 			while(rs.next()) {
@@ -323,49 +842,132 @@ public class DatabaseHelper {
 			}
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 		
 		return archive;
 	}
 	
-	// Return a set of useful information from all the data in the archive
-	public ArrayList<BarometerReading> getFullArchive() {
-		ArrayList<BarometerReading> archive = new ArrayList<BarometerReading>();
-		if(!connected) {
-			connectToDatabase();
+	
+	/**
+	 * Where a page of readings ended: the time and id of its last row. Readings are
+	 * paged in (daterecorded, id) order, so the next page starts strictly after
+	 * this, and rows added in the meantime are neither skipped nor repeated.
+	 */
+	public static class PageCursor {
+		final long time;
+		final long id;
+		
+		public PageCursor(long time, long id) {
+			this.time = time;
+			this.id = id;
+		}
+		
+		// The token handed to clients
+		public String encode() {
+			return time + "_" + id;
+		}
+		
+		/**
+		 * @throws IllegalArgumentException if the token isn't one of ours
+		 */
+		public static PageCursor decode(String token) {
+			int split = token.indexOf('_');
+			if(split < 0) {
+				throw new IllegalArgumentException("bad page token");
+			}
+			try {
+				return new PageCursor(Long.parseLong(token.substring(0, split)), Long.parseLong(token.substring(split + 1)));
+			} catch(NumberFormatException nfe) {
+				throw new IllegalArgumentException("bad page token");
+			}
 		}
+	}
+	
+	/**
+	 * One page of readings from Readings or the archive, oldest first, from
+	 * sinceWhen or from after a previous page. Keyset paging on (daterecorded, id)
+	 * costs the same however deep the page is, and rows come through a cursor.
+	 * Locations are fudged as for every public download.
+	 * @param archive true for the archive, false for users' latest readings
+	 * @param sinceWhen
+	 * @param after where the previous page ended, or null for the first page
+	 * @param limit
+	 * @param page the readings are added to this
+	 * @return where this page ended if there may be more, or null if this was the last page
+	 * @throws SQLException
+	 */
+	public PageCursor getReadingsPage(boolean archive, long sinceWhen, PageCursor after, int limit, ArrayList<BarometerReading> page) throws SQLException {
+		String table = archive ? "archive" : "Readings";
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			pstmt = db.prepareStatement("select * from archive");
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			if(after == null) {
+				pstmt = db.prepareStatement("SELECT * FROM " + table + " WHERE daterecorded > ? ORDER BY daterecorded, id LIMIT ?");
+				pstmt.setLong(1, sinceWhen);
+				pstmt.setInt(2, limit);
+			} else {
+				pstmt = db.prepareStatement("SELECT * FROM " + table + " WHERE daterecorded > ? AND (daterecorded, id) > (?, ?) ORDER BY daterecorded, id LIMIT ?");
+				pstmt.setLong(1, sinceWhen);
+				pstmt.setLong(2, after.time);
+				pstmt.setLong(3, after.id);
+				pstmt.setInt(4, limit);
+			}
+			pstmt.setFetchSize(CURSOR_FETCH_SIZE);
 			ResultSet rs = pstmt.executeQuery();
+			int rows = 0;
+			long lastTime = 0;
+			long lastId = 0;
 			while(rs.next()) {
-				archive.add(resultSetToBarometerReading(rs));
+				lastTime = rs.getLong("daterecorded");
+				lastId = rs.getLong("id");
+				page.add(fudgeGPS(resultSetToBarometerReading(rs)));
+				rows++;
 			}
-		} catch(SQLException sqle) {
-			log.info(sqle.getMessage());
+			db.commit();
+			return (rows == limit) ? new PageCursor(lastTime, lastId) : null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
-		
-		return archive;
+	}
+	
+	// Strictly inside the region. The box test says the same thing in a form the
+	// gist index on point(longitude, latitude) can answer.
+	private static final String REGION_PREDICATE = "latitude>? AND latitude<? AND longitude>? AND longitude<? " +
+			"AND point(longitude, latitude) <@ box(point(?, ?), point(?, ?))";
+	
+	private static void setRegionParameters(PreparedStatement pstmt, double lat1, double lat2, double lon1, double lon2) throws SQLException {
+		pstmt.setDouble(1, lat1);
+		pstmt.setDouble(2, lat2);
+		pstmt.setDouble(3, lon1);
+		pstmt.setDouble(4, lon2);
+		pstmt.setDouble(5, lon1);
+		pstmt.setDouble(6, lat1);
+		pstmt.setDouble(7, lon2);
+		pstmt.setDouble(8, lat2);
 	}
 	
 	// table is usually "readings" for only-single-datapoints, "archive" for historical user values
 	public int getReadingCountWithinRegion(double[] region, long sinceWhen, String table ) {
-		if(!connected) {
-			connectToDatabase();
-		}
 
 		double lat1 = region[0];
 		double lat2 = region[1];
 		double lon1 = region[2];
 		double lon2 = region[3];
 		
-		String sql = "SELECT count(*) FROM " + table + " WHERE latitude>? AND latitude<? AND longitude>? AND longitude<? and daterecorded>?";
+		String sql = "SELECT count(*) FROM " + table + " WHERE " + REGION_PREDICATE + " and daterecorded>?";
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			pstmt = db.prepareStatement(sql);
-			pstmt.setDouble(1, lat1);
-			pstmt.setDouble(2, lat2);
-			pstmt.setDouble(3, lon1);
-			pstmt.setDouble(4, lon2);
-			pstmt.setLong(5, sinceWhen);
+			setRegionParameters(pstmt, lat1, lat2, lon1, lon2);
+			pstmt.setLong(9, sinceWhen);
 			
 			ResultSet rs = pstmt.executeQuery();
 			rs.next();
@@ -375,6 +977,9 @@ public class DatabaseHelper {
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
 			return -1;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 	}
 	
@@ -386,9 +991,6 @@ public class DatabaseHelper {
 	
 	
 	public CurrentCondition resultSetToCurrentCondition(ResultSet rs) {
-		if(!connected) {
-			connectToDatabase();
-		}
 		try {
 			CurrentCondition cc = new CurrentCondition();
 			cc.setGeneral_condition(rs.getString("general_condition"));
@@ -409,42 +1011,14 @@ public class DatabaseHelper {
 		}
 	}
 
-	public ArrayList<CurrentCondition> getConditionsWithinRegion(ArrayList<Double> region, long sinceWhen ) {
-		if(!connected) {
-			connectToDatabase();
-		}
-		ArrayList<CurrentCondition> conditionsList = new ArrayList<CurrentCondition>();
-
-		double lat1 = region.get(0);
-		double lat2 = region.get(1);
-		double lon1 = region.get(2);
-		double lon2 = region.get(3);
-		
-		//log.info("lat1: " + lat1 + ", lat2: " + lat2 + ", lon1: " + lon1 + ", lon2: " + lon2);
-		//log.info(sinceWhen + " - " + Calendar.getInstance().getTimeInMillis());
-		String sql = "SELECT * FROM CurrentCondition WHERE latitude>? AND latitude<? AND longitude>? AND longitude<? and time>?";
-		try {
-			pstmt = db.prepareStatement(sql);
-			pstmt.setDouble(1, lat1);
-			pstmt.setDouble(2, lat2);
-			pstmt.setDouble(3, lon1);
-			pstmt.setDouble(4, lon2);
-			pstmt.setLong(5, sinceWhen);
-			
-			ResultSet rs = pstmt.executeQuery();
-			int i = 0;
-			while(rs.next()) {
-				i++;
-				conditionsList.add(resultSetToCurrentCondition(rs));
-				if(i>MAX) {
-					break;
-				}
-			}
-			return fudgeGPSConditionsData(conditionsList);
-		} catch(SQLException sqle) {
-			log.info(sqle.getMessage());
-			return null;
-		}
+	/*
+	 * Answered from the in-memory index of each user's latest condition. Every
+	 * condition in the tile is returned at its recorded position; the caller
+	 * limits them and fudges the positions before sending.
+	 */
+	public ArrayList<CurrentCondition> getConditionsWithinTile(TileCache.Tile tile, long sinceWhen ) {
+		return conditionIndex.queryTile(tile.minLatitude, tile.maxLatitude,
+				tile.minLongitude, tile.maxLongitude, sinceWhen, Integer.MAX_VALUE);
 	}
 	
 	private double thunderstormStringToDouble(String intensity) {
@@ -459,101 +1033,62 @@ public class DatabaseHelper {
 		}
 	}
 
+	// Same idea as UPSERT_READING_SQL: one row per user in CurrentCondition, every
+	// condition in CurrentConditionArchive.
+	private static final String UPSERT_CONDITION_SQL = "WITH latest AS (" +
+			"INSERT INTO CurrentCondition (latitude, longitude, location_type, location_accuracy, time, tzoffset, general_condition, windy, foggy, cloud_type, precipitation_type, precipitation_amount, precipitation_unit, thunderstorm_intensity, user_comment, sharing_policy, user_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+			"ON CONFLICT (user_id) DO UPDATE SET latitude=EXCLUDED.latitude, longitude=EXCLUDED.longitude, location_type=EXCLUDED.location_type, location_accuracy=EXCLUDED.location_accuracy, " +
+			"time=EXCLUDED.time, tzoffset=EXCLUDED.tzoffset, general_condition=EXCLUDED.general_condition, windy=EXCLUDED.windy, foggy=EXCLUDED.foggy, cloud_type=EXCLUDED.cloud_type, " +
+			"precipitation_type=EXCLUDED.precipitation_type, precipitation_amount=EXCLUDED.precipitation_amount, precipitation_unit=EXCLUDED.precipitation_unit, " +
+			"thunderstorm_intensity=EXCLUDED.thunderstorm_intensity, user_comment=EXCLUDED.user_comment, sharing_policy=EXCLUDED.sharing_policy " +
+			"WHERE CurrentCondition.time <= EXCLUDED.time) " +
+			"INSERT INTO CurrentConditionArchive (latitude, longitude, location_type, location_accuracy, time, tzoffset, general_condition, windy, foggy, cloud_type, precipitation_type, precipitation_amount, precipitation_unit, thunderstorm_intensity, user_comment, sharing_policy, user_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
 	public boolean addCurrentConditionToDatabase(CurrentCondition condition) {
-		if(!connected) {
-			connectToDatabase();
-		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			// Check for existing ID in database
-			ArrayList<CurrentCondition> conditions = new ArrayList<CurrentCondition>();
-			pstmt = db.prepareStatement("SELECT * FROM CurrentCondition WHERE  user_id='" + condition.getUser_id() + "'");
-			ResultSet rs = pstmt.executeQuery();
-			while(rs.next()) {
-				conditions.add(resultSetToCurrentCondition(rs));
-			}
-			log.info("adding a condition. existing entries for id: " + conditions.size());
-			if(conditions.size() > 0) {
-				// Exists. Update.
-				pstmt = db.prepareStatement("UPDATE CurrentCondition SET latitude=?, longitude=?, location_type=?, location_accuracy=?, time=?, tzoffset=?, general_condition=?, windy=?, foggy=?, cloud_type=?, precipitation_type=?, precipitation_amount=?, precipitation_unit=?, thunderstorm_intensity=?, user_comment=?, sharing_policy=? WHERE user_id=?");
-				pstmt.setDouble(1, condition.getLatitude());
-				pstmt.setDouble(2, condition.getLongitude());
-				pstmt.setString(3, condition.getLocation_type());
-				pstmt.setDouble(4, condition.getLocation_accuracy());
-				pstmt.setDouble(5, condition.getTime());
-				pstmt.setInt(6, condition.getTzoffset());
-				pstmt.setString(7, condition.getGeneral_condition());
-				pstmt.setString(8, condition.getWindy());
-				pstmt.setString(9, condition.getFog_thickness());
-				pstmt.setString(10, condition.getCloud_type());
-				pstmt.setString(11, condition.getPrecipitation_type());
-				pstmt.setDouble(12, condition.getPrecipitation_amount());
-				pstmt.setString(13, condition.getPrecipitation_unit());
-				pstmt.setDouble(14, thunderstormStringToDouble(condition.getThunderstorm_intensity()));
-				pstmt.setString(15, condition.getUser_comment());
-				pstmt.setString(16, condition.getSharing_policy());
-				pstmt.setString(17, condition.getUser_id());
-				pstmt.execute();
-			} else {
-				// Doesn't exist. Insert a new row.
-				pstmt = db.prepareStatement("INSERT INTO CurrentCondition (latitude, longitude, location_type, location_accuracy, time, tzoffset, general_condition, windy, foggy, cloud_type, precipitation_type, precipitation_amount, precipitation_unit, thunderstorm_intensity, user_comment, sharing_policy, user_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ,?)");
-				pstmt.setDouble(1, condition.getLatitude());
-				pstmt.setDouble(2, condition.getLongitude());
-				pstmt.setString(3, condition.getLocation_type());
-				pstmt.setDouble(4, condition.getLocation_accuracy());
-				pstmt.setDouble(5, condition.getTime());
-				pstmt.setInt(6, condition.getTzoffset());
-				pstmt.setString(7, condition.getGeneral_condition());
-				pstmt.setString(8, condition.getWindy());
-				pstmt.setString(9, condition.getFog_thickness());
-				pstmt.setString(10, condition.getCloud_type());
-				pstmt.setString(11, condition.getPrecipitation_type());
-				pstmt.setDouble(12, condition.getPrecipitation_amount());
-				pstmt.setString(13, condition.getPrecipitation_unit());
-				pstmt.setDouble(14, thunderstormStringToDouble(condition.getThunderstorm_intensity()));
-				pstmt.setString(15, condition.getUser_comment());
-				pstmt.setString(16, condition.getSharing_policy());
-				pstmt.setString(17, condition.getUser_id());
-							
-				pstmt.execute();
-				//log.info("inserting new " + reading.getAndroidId());
-			}
-			
-			// Either way, add it to the archive.
-			log.info("archiving condition.");
-			pstmt = db.prepareStatement("INSERT INTO CurrentConditionArchive (latitude, longitude, location_type, location_accuracy, time, tzoffset, general_condition, windy, foggy, cloud_type, precipitation_type, precipitation_amount, precipitation_unit, thunderstorm_intensity, user_comment, sharing_policy, user_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ,?)");
-			pstmt.setDouble(1, condition.getLatitude());
-			pstmt.setDouble(2, condition.getLongitude());
-			pstmt.setString(3, condition.getLocation_type());
-			pstmt.setDouble(4, condition.getLocation_accuracy());
-			pstmt.setDouble(5, condition.getTime());
-			pstmt.setInt(6, condition.getTzoffset());
-			pstmt.setString(7, condition.getGeneral_condition());
-			pstmt.setString(8, condition.getWindy());
-			pstmt.setString(9, condition.getFog_thickness());
-			pstmt.setString(10, condition.getCloud_type());
-			pstmt.setString(11, condition.getPrecipitation_type());
-			pstmt.setDouble(12, condition.getPrecipitation_amount());
-			pstmt.setString(13, condition.getPrecipitation_unit());
-			pstmt.setDouble(14, thunderstormStringToDouble(condition.getThunderstorm_intensity()));
-			pstmt.setString(15, condition.getUser_comment());
-			pstmt.setString(16, condition.getSharing_policy());
-			pstmt.setString(17, condition.getUser_id());
-						
+			db = pool.getConnection();
+			pstmt = db.prepareStatement(UPSERT_CONDITION_SQL);
+			setConditionParameters(pstmt, condition, 0);
+			setConditionParameters(pstmt, condition, 17);
 			pstmt.execute();
+			conditionStored(condition);
 			return true;
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
 			return false;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 	}
 	
+	// Column order shared by the CurrentCondition and archive inserts, starting after offset
+	private void setConditionParameters(PreparedStatement pstmt, CurrentCondition condition, int offset) throws SQLException {
+		pstmt.setDouble(offset + 1, condition.getLatitude());
+		pstmt.setDouble(offset + 2, condition.getLongitude());
+		pstmt.setString(offset + 3, condition.getLocation_type());
+		pstmt.setDouble(offset + 4, condition.getLocation_accuracy());
+		pstmt.setLong(offset + 5, Math.round(condition.getTime()));
+		pstmt.setInt(offset + 6, condition.getTzoffset());
+		pstmt.setString(offset + 7, condition.getGeneral_condition());
+		pstmt.setString(offset + 8, condition.getWindy());
+		pstmt.setString(offset + 9, condition.getFog_thickness());
+		pstmt.setString(offset + 10, condition.getCloud_type());
+		pstmt.setString(offset + 11, condition.getPrecipitation_type());
+		pstmt.setDouble(offset + 12, condition.getPrecipitation_amount());
+		pstmt.setString(offset + 13, condition.getPrecipitation_unit());
+		pstmt.setDouble(offset + 14, thunderstormStringToDouble(condition.getThunderstorm_intensity()));
+		pstmt.setString(offset + 15, condition.getUser_comment());
+		pstmt.setString(offset + 16, condition.getSharing_policy());
+		pstmt.setString(offset + 17, condition.getUser_id());
+	}
+	
 	
 	
 	// table is "readings" for only-single-datapoints, "archive" for historical user values
 	public ArrayList<BarometerReading> getReadingsWithinRegion(double[] region, long sinceWhen, String table ) {
-		if(!connected) {
-			connectToDatabase();
-		}
 		ArrayList<BarometerReading> readingsList = new ArrayList<BarometerReading>();
 
 		double lat1 = region[0];
@@ -563,14 +1098,14 @@ public class DatabaseHelper {
 		
 		//log.info("lat1: " + lat1 + ", lat2: " + lat2 + ", lon1: " + lon1 + ", lon2: " + lon2);
 		//log.info(sinceWhen + " - " + Calendar.getInstance().getTimeInMillis());
-		String sql = "SELECT * FROM " + table + " WHERE latitude>? AND latitude<? AND longitude>? AND longitude<? and daterecorded>?";
+		String sql = "SELECT * FROM " + table + " WHERE " + REGION_PREDICATE + " and daterecorded>?";
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			pstmt = db.prepareStatement(sql);
-			pstmt.setDouble(1, lat1);
-			pstmt.setDouble(2, lat2);
-			pstmt.setDouble(3, lon1);
-			pstmt.setDouble(4, lon2);
-			pstmt.setLong(5, sinceWhen);
+			setRegionParameters(pstmt, lat1, lat2, lon1, lon2);
+			pstmt.setLong(9, sinceWhen);
 			
 			ResultSet rs = pstmt.executeQuery();
 			
@@ -582,26 +1117,28 @@ public class DatabaseHelper {
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
 			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 	}
 		
 	
 	// Reading is stored in millibars. Convert to user-preferred unit.
 	public double convertFromMbarsToCustomUnits(double reading, String units) {
-		Unit u = new Unit(units);
-		u.setValue(reading);
-		return u.convertToPreferredUnit();
+		return PressureUnit.parse(units).fromMbar(reading);
 	}
 	
 	public BarometerReading resultSetToBarometerReading(ResultSet rs, String units) {
-		if(!connected) {
-			connectToDatabase();
-		}
+		return resultSetToBarometerReading(rs, PressureUnit.parse(units));
+	}
+	
+	public BarometerReading resultSetToBarometerReading(ResultSet rs, PressureUnit unit) {
 		try {
 			BarometerReading br = new BarometerReading();
 			br.setLatitude(rs.getDouble("latitude"));
 			br.setLongitude(rs.getDouble("longitude"));
-			br.setReading(convertFromMbarsToCustomUnits(rs.getDouble("reading"), units));
+			br.setReading(unit.fromMbar(rs.getDouble("reading")));
 			br.setTime(rs.getDouble("daterecorded"));
 			br.setTimeZoneOffset(rs.getInt("tzoffset"));
 			br.setAndroidId(rs.getString("text"));
@@ -617,9 +1154,6 @@ public class DatabaseHelper {
 	}
 	
 	public BarometerReading resultSetToBarometerReading(ResultSet rs) {
-		if(!connected) {
-			connectToDatabase();
-		}
 		try {
 			BarometerReading br = new BarometerReading();
 			br.setLatitude(rs.getDouble("latitude"));
@@ -639,144 +1173,80 @@ public class DatabaseHelper {
 		}
 	}
 	
-	private double daysToMs(int days) {
-		return 1000 * 60 * 60 * 24 * days;
-	}
-	
 
-	private ArrayList<CurrentCondition> fudgeGPSConditionsData(ArrayList<CurrentCondition> conditions) {
-		ArrayList<CurrentCondition> fudgedConditions = new ArrayList<CurrentCondition>();
-		for(CurrentCondition cc : conditions) {
-			double longitude = cc.getLongitude();
-			double latitude = cc.getLatitude();
-			double range = .01;
-			Random lat = new Random(Long.parseLong(cc.getUser_id().substring(0, 4),16));
-			Random lon = new Random(Long.parseLong(cc.getUser_id().substring(0, 4),16));
-			latitude = (latitude - range) + (int)(lat.nextDouble()) * ((2 * range) + 1);
-			longitude = (longitude - range) + (int)(lon.nextDouble() * ((2 * range) + 1));
-			cc.setLatitude(latitude);
-			cc.setLongitude(longitude);
-			fudgedConditions.add(cc);
-		}
-		
-		return fudgedConditions;
+	public CurrentCondition fudgeGPS(CurrentCondition cc) {
+		double longitude = cc.getLongitude();
+		double latitude = cc.getLatitude();
+		double range = .01;
+		Random lat = new Random(Long.parseLong(cc.getUser_id().substring(0, 4),16));
+		Random lon = new Random(Long.parseLong(cc.getUser_id().substring(0, 4),16));
+		latitude = (latitude - range) + (int)(lat.nextDouble()) * ((2 * range) + 1);
+		longitude = (longitude - range) + (int)(lon.nextDouble() * ((2 * range) + 1));
+		cc.setLatitude(latitude);
+		cc.setLongitude(longitude);
+		return cc;
 	}
 	
 	private ArrayList<BarometerReading> fudgeGPSData(ArrayList<BarometerReading> readings) {
 		ArrayList<BarometerReading> fudgedReadings = new ArrayList<BarometerReading>();
 		for(BarometerReading br : readings) {
-			double longitude = br.getLongitude();
-			double latitude = br.getLatitude();
-			double range = .01;
-			Random lat = new Random(Long.parseLong(br.getAndroidId().substring(0, 4),16));
-			Random lon = new Random(Long.parseLong(br.getAndroidId().substring(0, 4),16));
-			latitude = (latitude - range) + (int)(lat.nextDouble()  * ((2 * range) + 1));
-			longitude = (longitude - range) + (int)(lon.nextDouble() * ((2 * range) + 1));
-			br.setLatitude(latitude);
-			br.setLongitude(longitude);
-			fudgedReadings.add(br);
+			fudgedReadings.add(fudgeGPS(br));
 		}
 		
 		return fudgedReadings;
 	}
 	
-	public ArrayList<BarometerReading> getRecentReadings(int days) {
-		if(!connected) {
-			connectToDatabase();
-		}
-		if(connected) {
-			ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
-			try {
-				double dateCutoff = Calendar.getInstance().getTimeInMillis() - daysToMs(days); // Now - days in millis
-				log.info("date cutoff: " + dateCutoff + " dayscuttingoffinms: " + daysToMs(days));
-				pstmt = db.prepareStatement("SELECT * FROM Readings WHERE daterecorded > " + dateCutoff);
-				ResultSet rs = pstmt.executeQuery();
-				int i = 0;
-				while(rs.next()) {
-					i++;
-					readings.add(resultSetToBarometerReading(rs));
-					if(i>MAX) {
-						break;
-					}
-				}
-				return fudgeGPSData(readings);
-			} catch(SQLException e) {
-				log.info(e.getMessage());
-				return null;
-			}
-		}
-		return null;
+	public BarometerReading fudgeGPS(BarometerReading br) {
+		double longitude = br.getLongitude();
+		double latitude = br.getLatitude();
+		double range = .01;
+		Random lat = new Random(Long.parseLong(br.getAndroidId().substring(0, 4),16));
+		Random lon = new Random(Long.parseLong(br.getAndroidId().substring(0, 4),16));
+		latitude = (latitude - range) + (int)(lat.nextDouble()  * ((2 * range) + 1));
+		longitude = (longitude - range) + (int)(lon.nextDouble() * ((2 * range) + 1));
+		br.setLatitude(latitude);
+		br.setLongitude(longitude);
+		return br;
 	}
 	
+	
 	public ArrayList<BarometerReading> getAllReadings() {
-		if(!connected) {
-			connectToDatabase();
-		}
-		if(connected) {
-			ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
-			try {
-				pstmt = db.prepareStatement("SELECT * FROM Readings");
-				ResultSet rs = pstmt.executeQuery();
-				int i = 0;
-				while(rs.next()) {
-					i++;
-					readings.add(resultSetToBarometerReading(rs));
-					if(i>MAX) {
-						break;
-					}
-				}
-				return fudgeGPSData(readings);
-			} catch(SQLException sqle) {
-				log.info(sqle.getMessage());
-				return null;
-			}
-		}
-		return null;
-	}
-
-	public ArrayList<BarometerReading> getReadingsWithinRegion(ArrayList<Double> region, long sinceWhen ) {
-		if(!connected) {
-			connectToDatabase();
-		}
-		ArrayList<BarometerReading> readingsList = new ArrayList<BarometerReading>();
-
-		double lat1 = region.get(0);
-		double lat2 = region.get(1);
-		double lon1 = region.get(2);
-		double lon2 = region.get(3);
-		
-		//log.info("lat1: " + lat1 + ", lat2: " + lat2 + ", lon1: " + lon1 + ", lon2: " + lon2);
-		//log.info(sinceWhen + " - " + Calendar.getInstance().getTimeInMillis());
-		String sql = "SELECT * FROM Readings WHERE latitude>? AND latitude<? AND longitude>? AND longitude<? and daterecorded>?";
+		ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			pstmt = db.prepareStatement(sql);
-			pstmt.setDouble(1, lat1);
-			pstmt.setDouble(2, lat2);
-			pstmt.setDouble(3, lon1);
-			pstmt.setDouble(4, lon2);
-			pstmt.setLong(5, sinceWhen);
-			
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("SELECT * FROM Readings");
 			ResultSet rs = pstmt.executeQuery();
 			int i = 0;
 			while(rs.next()) {
 				i++;
-				readingsList.add(resultSetToBarometerReading(rs));
+				readings.add(resultSetToBarometerReading(rs));
 				if(i>MAX) {
 					break;
 				}
 			}
-			return fudgeGPSData(readingsList);
+			return fudgeGPSData(readings);
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
 			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 	}
+
+	// Like getConditionsWithinTile, from the index of each user's latest reading
+	public ArrayList<BarometerReading> getReadingsWithinTile(TileCache.Tile tile, long sinceWhen ) {
+		return readingIndex.queryTile(tile.minLatitude, tile.maxLatitude,
+				tile.minLongitude, tile.maxLongitude, sinceWhen, Integer.MAX_VALUE);
+	}
 	
 	public BarometerReading getReadingById(int id) {
-		if(!connected) {
-			connectToDatabase();
-		}
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
+			db = pool.getConnection();
 			pstmt = db.prepareStatement("SELECT * FROM Readings WHERE id=" + id);
 			ResultSet rs = pstmt.executeQuery();
 			if(rs.next()) {
@@ -788,72 +1258,636 @@ public class DatabaseHelper {
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
 			return null;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
 	}
 	
-	public void create() {
-		if(!connected) {
-			connectToDatabase();
+	// Hourly per-cell summary of raw readings that have been retired from the archive
+	private static final String CREATE_ARCHIVE_HOURLY_SQL = "CREATE TABLE IF NOT EXISTS archive_hourly (" +
+			"hour bigint, cell_latitude int, cell_longitude int, readings int, users int, " +
+			"min_reading double precision, mean_reading double precision, max_reading double precision, " +
+			"PRIMARY KEY (hour, cell_latitude, cell_longitude))";
+	
+	// Roll a retired archive partition up into hours and whole-degree cells
+	private static final String ROLLUP_SQL = "INSERT INTO archive_hourly " +
+			"(hour, cell_latitude, cell_longitude, readings, users, min_reading, mean_reading, max_reading) " +
+			"SELECT floor(daterecorded / 3600000)::bigint, floor(latitude)::int, floor(longitude)::int, " +
+			"count(*), count(distinct text), min(reading), avg(reading), max(reading) " +
+			"FROM %s GROUP BY 1, 2, 3 ON CONFLICT DO NOTHING";
+	
+	private static final Pattern PARTITION_BOUND = Pattern.compile("FROM \\('?([^')]+)'?\\) TO \\('?([^')]+)'?\\)");
+	
+	/**
+	 * One time range of a partitioned archive table. from is Long.MIN_VALUE for
+	 * a partition with no lower bound.
+	 */
+	public static class ArchivePartition {
+		String name;
+		long from;
+		long to;
+		
+		public String getName() {
+			return name;
+		}
+		
+		public long getFrom() {
+			return from;
+		}
+		
+		public long getTo() {
+			return to;
 		}
+	}
+	
+	/**
+	 * Make an archive table partitioned by time on column, if it isn't already.
+	 * The existing table is kept as the partition archive_legacy (or
+	 * [table]_legacy) covering everything up to the start of next month, and a
+	 * default partition catches rows outside every other partition. Rows dated
+	 * past next month, from phones with their clocks wrong, are moved to the
+	 * default partition so they can't stretch the legacy partition over the
+	 * months maintenance creates. The legacy partition is retired as one block,
+	 * once all of it is past the retention cutoff, so the oldest rows it holds
+	 * can outlive the retention period by as long as the table has history.
+	 * Safe to call more than once.
+	 * @return false if the table couldn't be converted
+	 */
+	public boolean partitionArchive(String table, String column) {
+		Connection db = null;
+		Statement stmt = null;
 		try {
-			pstmt = db.prepareStatement("DROP TABLE Archive;");
-			pstmt = db.prepareStatement("DROP TABLE Readings;");
-			pstmt = db.prepareStatement("DROP TABLE CurrentCondition;");
-			pstmt = db.prepareStatement("DROP TABLE CurrentConditionArchive;");
-			
-			pstmt.execute();
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			stmt = db.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT relkind FROM pg_class WHERE oid = to_regclass('" + table + "')");
+			if(!rs.next()) {
+				log.info("no table " + table + " to partition");
+				return false;
+			}
+			if("r".equals(rs.getString(1))) {
+				String legacy = table + "_legacy";
+				long legacyEnd = ArchiveMaintenance.monthStart(System.currentTimeMillis(), 1);
+				
+				stmt.execute("ALTER TABLE " + table + " RENAME TO " + legacy);
+				// Indexes come along so the legacy table's indexes are attached to them, and new partitions get them
+				stmt.execute("CREATE TABLE " + table + " (LIKE " + legacy + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING INDEXES) PARTITION BY RANGE (" + column + ")");
+				stmt.execute("CREATE TABLE IF NOT EXISTS " + table + "_default PARTITION OF " + table + " DEFAULT");
+				int moved = stmt.executeUpdate("WITH moved AS (DELETE FROM " + legacy + " WHERE " + column + " >= " + legacyEnd + " RETURNING *) " +
+						"INSERT INTO " + table + "_default SELECT * FROM moved");
+				if(moved > 0) {
+					log.info("moved " + moved + " future-dated rows of " + table + " to the default partition");
+				}
+				stmt.execute("ALTER TABLE " + table + " ATTACH PARTITION " + legacy + " FOR VALUES FROM (MINVALUE) TO (" + legacyEnd + ")");
+				// The id sequence belonged to the old table; move it over so it outlives the legacy partition
+				rs = stmt.executeQuery("SELECT pg_get_serial_sequence('" + legacy + "', 'id')");
+				if(rs.next() && rs.getString(1) != null) {
+					stmt.execute("ALTER SEQUENCE " + rs.getString(1) + " OWNED BY " + table + ".id");
+				}
+				log.info("partitioned " + table + "; existing rows are in " + legacy);
+			}
+			stmt.execute("CREATE TABLE IF NOT EXISTS " + table + "_default PARTITION OF " + table + " DEFAULT");
+			stmt.execute(CREATE_ARCHIVE_HOURLY_SQL);
+			db.commit();
+			return true;
+		} catch(SQLException e) {
+			log.info("partitioning " + table + " failed: " + e.getMessage());
+			return false;
+		} finally {
+			closeStatement(stmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * The time partitions of an archive table, oldest first. The default
+	 * partition isn't included.
+	 */
+	public ArrayList<ArchivePartition> getArchivePartitions(String table) {
+		ArrayList<ArchivePartition> partitions = new ArrayList<ArchivePartition>();
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i " +
+					"JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass(?)");
+			pstmt.setString(1, table);
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				Matcher bound = PARTITION_BOUND.matcher(rs.getString(2));
+				if(!bound.find()) {
+					continue;
+				}
+				ArchivePartition partition = new ArchivePartition();
+				partition.name = rs.getString(1);
+				partition.from = bound.group(1).equals("MINVALUE") ? Long.MIN_VALUE : new BigDecimal(bound.group(1)).longValue();
+				partition.to = bound.group(2).equals("MAXVALUE") ? Long.MAX_VALUE : new BigDecimal(bound.group(2)).longValue();
+				partitions.add(partition);
+			}
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+		} catch(NumberFormatException nfe) {
+			log.info("unreadable partition bound: " + nfe.getMessage());
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+		Collections.sort(partitions, new Comparator<ArchivePartition>() {
+			public int compare(ArchivePartition a, ArchivePartition b) {
+				return (a.from < b.from) ? -1 : ((a.from == b.from) ? 0 : 1);
+			}
+		});
+		return partitions;
+	}
+	
+	/**
+	 * Partitions of table that were detached into cold storage: tables named
+	 * like its legacy or monthly partitions that aren't partitions any more.
+	 */
+	private ArrayList<String> getDetachedArchivePartitions(Connection db, String table) throws SQLException {
+		ArrayList<String> partitions = new ArrayList<String>();
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = db.prepareStatement("SELECT relname FROM pg_class WHERE relkind = 'r' AND NOT relispartition " +
+					"AND (relname = ? OR relname ~ ?)");
+			pstmt.setString(1, table + "_legacy");
+			pstmt.setString(2, "^" + table + "_y[0-9]{4}m[0-9]{2}$");
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				partitions.add(rs.getString(1));
+			}
+		} finally {
+			closeStatement(pstmt);
+		}
+		return partitions;
+	}
+	
+	/**
+	 * Add a partition covering [from, to) on column. Rows for that range that
+	 * already landed in the default partition are moved into it first, since
+	 * Postgres won't attach a partition whose rows the default partition holds.
+	 */
+	public boolean addArchivePartition(String table, String column, String name, long from, long to) {
+		Connection db = null;
+		Statement stmt = null;
+		try {
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			stmt = db.createStatement();
+			stmt.execute("CREATE TABLE " + name + " (LIKE " + table + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+			stmt.execute("WITH moved AS (DELETE FROM " + table + "_default WHERE " + column + " >= " + from + " AND " + column + " < " + to + " RETURNING *) " +
+					"INSERT INTO " + name + " SELECT * FROM moved");
+			stmt.execute("ALTER TABLE " + table + " ATTACH PARTITION " + name + " FOR VALUES FROM (" + from + ") TO (" + to + ")");
+			db.commit();
+			log.info("added archive partition " + name);
+			return true;
+		} catch(SQLException e) {
+			log.info("adding partition " + name + " failed: " + e.getMessage());
+			return false;
+		} finally {
+			closeStatement(stmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Take an expired partition out of the archive. Archived readings are rolled
+	 * up into archive_hourly first. With coldStorage the partition is detached and
+	 * kept as a table of its own; otherwise it is dropped.
+	 */
+	public boolean retireArchivePartition(String table, ArchivePartition partition, boolean rollup, boolean coldStorage) {
+		Connection db = null;
+		Statement stmt = null;
+		try {
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			stmt = db.createStatement();
+			if(rollup) {
+				stmt.execute(String.format(ROLLUP_SQL, partition.name));
+			}
+			if(coldStorage) {
+				stmt.execute("ALTER TABLE " + table + " DETACH PARTITION " + partition.name);
+			} else {
+				stmt.execute("DROP TABLE " + partition.name);
+			}
+			db.commit();
+			log.info((coldStorage ? "detached " : "dropped ") + "archive partition " + partition.name);
+			return true;
+		} catch(SQLException e) {
+			log.info("retiring partition " + partition.name + " failed: " + e.getMessage());
+			return false;
+		} finally {
+			closeStatement(stmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Keep the archive tables partitioned, with partitions ready ahead of time
+	 * and expired ones retired, on a daily schedule.
+	 * @param retentionMonths months of raw readings to keep; 0 keeps everything
+	 * @param coldStorage detach expired partitions instead of dropping them
+	 */
+	public void startArchiveMaintenance(int retentionMonths, boolean coldStorage) {
+		synchronized(this) {
+			if(archiveMaintenance != null) {
+				return;
+			}
+			archiveMaintenance = new ArchiveMaintenance(this, retentionMonths, coldStorage);
+		}
+		archiveMaintenance.start();
+	}
+	
+	/**
+	 * Log every stored reading to memory-mapped files in directory, so warm-up and
+	 * archive scans of the last few days can replay them from disk.
+	 * @param directory
+	 * @param retentionDays how long logged readings are kept
+	 */
+	public void startArchiveLog(File directory, int retentionDays) {
+		ArchiveLog opened = new ArchiveLog(directory, retentionDays * 24L * 60 * 60 * 1000);
+		try {
+			opened.open();
+		} catch(IOException ioe) {
+			log.info("unable to open the archive log: " + ioe.getMessage());
+			return;
+		}
+		synchronized(this) {
+			if(archiveLog != null) {
+				opened.close();
+				return;
+			}
+			archiveLog = opened;
+		}
+		log.info(opened.toString());
+	}
+	
+	public void create() {
+		Connection db = null;
+		Statement stmt = null;
+		try {
+			db = pool.getConnection();
+			stmt = db.createStatement();
+			stmt.execute("DROP TABLE IF EXISTS Archive");
+			stmt.execute("DROP TABLE IF EXISTS Readings");
+			stmt.execute("DROP TABLE IF EXISTS CurrentCondition");
+			stmt.execute("DROP TABLE IF EXISTS CurrentConditionArchive");
+			stmt.execute("DROP TABLE IF EXISTS archive_hourly");
+			stmt.execute("DROP TABLE IF EXISTS schema_version");
 			
-			pstmt = db.prepareStatement("CREATE TABLE Archive (id serial,	latitude numeric, longitude numeric, daterecorded numeric, reading numeric, tzoffset int, text varchar(200), privacy varchar(100), client_key varchar(100), location_accuracy numeric, reading_accuracy numeric)");
-			pstmt = db.prepareStatement("CREATE TABLE CurrentCondition (id serial,	latitude numeric, longitude numeric, location_type varchar(20), location_accuracy numeric, time numeric, tzoffset int, general_condition varchar(200), windy varchar(20), foggy varchar(200), cloud_type varchar(200), precipitation_type varchar(20), precipitation_amount numeric, precipitation_unit varchar(20), thunderstorm_intensity numeric, user_comment varchar(200), sharing_policy varchar(100), user_id varchar(200))");			
-			pstmt = db.prepareStatement("CREATE TABLE CurrentConditionArchive (id serial,	latitude numeric, longitude numeric, location_type varchar(20), location_accuracy numeric, time numeric, tzoffset int, general_condition varchar(200), windy varchar(20), foggy varchar(200), cloud_type varchar(200), precipitation_type varchar(20), precipitation_amount numeric, precipitation_unit varchar(20), thunderstorm_intensity numeric, user_comment varchar(200), sharing_policy varchar(100), user_id varchar(200))");
-			pstmt = db.prepareStatement("CREATE TABLE Readings (id serial,	latitude numeric, longitude numeric, daterecorded numeric, reading numeric, tzoffset int, text varchar(200), client_key varchar(100), location_accuracy numeric, reading_accuracy numeric)");
-			pstmt.execute();
+			stmt.execute("CREATE TABLE Archive (id serial,	latitude double precision, longitude double precision, daterecorded bigint, reading double precision, tzoffset int, text varchar(200), privacy varchar(100), client_key varchar(100), location_accuracy double precision, reading_accuracy double precision) PARTITION BY RANGE (daterecorded)");
+			stmt.execute("CREATE TABLE archive_default PARTITION OF Archive DEFAULT");
+			stmt.execute("CREATE TABLE CurrentCondition (id serial,	latitude double precision, longitude double precision, location_type varchar(20), location_accuracy double precision, time bigint, tzoffset int, general_condition varchar(200), windy varchar(20), foggy varchar(200), cloud_type varchar(200), precipitation_type varchar(20), precipitation_amount double precision, precipitation_unit varchar(20), thunderstorm_intensity double precision, user_comment varchar(200), sharing_policy varchar(100), user_id varchar(200) UNIQUE)");			
+			stmt.execute("CREATE TABLE CurrentConditionArchive (id serial,	latitude double precision, longitude double precision, location_type varchar(20), location_accuracy double precision, time bigint, tzoffset int, general_condition varchar(200), windy varchar(20), foggy varchar(200), cloud_type varchar(200), precipitation_type varchar(20), precipitation_amount double precision, precipitation_unit varchar(20), thunderstorm_intensity double precision, user_comment varchar(200), sharing_policy varchar(100), user_id varchar(200)) PARTITION BY RANGE (time)");
+			stmt.execute("CREATE TABLE currentconditionarchive_default PARTITION OF CurrentConditionArchive DEFAULT");
+			stmt.execute(CREATE_ARCHIVE_HOURLY_SQL);
+			stmt.execute("CREATE TABLE Readings (id serial,	latitude double precision, longitude double precision, daterecorded bigint, reading double precision, tzoffset int, text varchar(200) UNIQUE, privacy varchar(100), client_key varchar(100), location_accuracy double precision, reading_accuracy double precision)");
 		} catch(SQLException e) {
 			log.info(e.getMessage());
+		} finally {
+			closeStatement(stmt);
+			pool.release(db);
 		}
-		
+		// The tables start out current; this records that and adds the indexes
+		upgradeSchema();
 	}
 	
-	public void cleanDatabase() {
-		if(!connected) {
-			connectToDatabase();
+	// Queries that should always be answered from an index: name, SQL, sample parameters
+	private static final Object[][] PLAN_CHECKS = {
+		{"user archive since", "select * from archive where text=? and daterecorded > ? order by daterecorded", "plan-check", 0L},
+		{"user CSV", "select daterecorded, latitude, longitude, reading from archive where text=? order by daterecorded", "plan-check"},
+		{"user submission count", "select count(*) from archive where text=? and daterecorded > ?", "plan-check", 0L},
+		{"archive since", "select latitude, longitude, daterecorded, reading, text from archive where daterecorded > ? order by daterecorded", 0L},
+		{"readings in region", "SELECT * FROM readings WHERE " + REGION_PREDICATE + " and daterecorded>?", 43.0, 44.0, -80.0, -79.0, 43.0, -80.0, 44.0, -79.0, 0L},
+		{"readings since", "SELECT * FROM Readings WHERE daterecorded > ?", 0L},
+		{"archive page", "SELECT * FROM archive WHERE daterecorded > ? AND (daterecorded, id) > (?, ?) ORDER BY daterecorded, id LIMIT ?", 0L, 0L, 0L, 1000},
+		{"readings page", "SELECT * FROM Readings WHERE daterecorded > ? AND (daterecorded, id) > (?, ?) ORDER BY daterecorded, id LIMIT ?", 0L, 0L, 0L, 1000},
+	};
+	
+	/**
+	 * Check that the main queries can still use an index. Each is EXPLAINed with
+	 * sequential scans switched off, which leaves the planner a sequential scan
+	 * only when no index fits, whatever the size of the table.
+	 * @return one line per query, starting with ok or SEQ SCAN
+	 */
+	public String checkQueryPlans() {
+		StringBuilder report = new StringBuilder();
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			Statement stmt = db.createStatement();
+			stmt.execute("SET LOCAL enable_seqscan = off");
+			closeStatement(stmt);
+			for(Object[] check : PLAN_CHECKS) {
+				pstmt = db.prepareStatement("EXPLAIN " + check[1]);
+				for(int i = 2; i < check.length; i++) {
+					pstmt.setObject(i - 1, check[i]);
+				}
+				ResultSet rs = pstmt.executeQuery();
+				boolean sequential = false;
+				while(rs.next()) {
+					if(rs.getString(1).contains("Seq Scan")) {
+						sequential = true;
+					}
+				}
+				closeStatement(pstmt);
+				pstmt = null;
+				report.append(sequential ? "SEQ SCAN " : "ok ").append(check[0]).append("\n");
+			}
+			db.rollback();
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			report.append("plan check failed: ").append(sqle.getMessage()).append("\n");
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
 		}
+		return report.toString();
+	}
+	
+	/**
+	 * Bring the database up to date with the SchemaMigrator. Safe to run more
+	 * than once; migrations already applied are skipped.
+	 */
+	public void upgradeSchema() {
+		new SchemaMigrator(pool).migrate();
+	}
+	
+	/**
+	 * Load recent rows from Readings and CurrentCondition into the in-memory indexes.
+	 * Called once at startup; after that the write path keeps them current.
+	 */
+	public void warmIndexes() {
+		long sinceWhen = System.currentTimeMillis() - INDEX_RETENTION;
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			pstmt = db.prepareStatement("DELETE FROM Readings");
-			pstmt = db.prepareStatement("DELETE FROM Archive");
-			pstmt = db.prepareStatement("DELETE FROM CurrentCondition");
-			pstmt = db.prepareStatement("DELETE FROM CurrentConditionArchive");
-			
-			pstmt.execute();
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("SELECT * FROM Readings WHERE daterecorded > ?");
+			pstmt.setLong(1, sinceWhen);
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				readingIndex.put(resultSetToBarometerReading(rs));
+			}
+			closeStatement(pstmt);
+			pstmt = db.prepareStatement("SELECT * FROM CurrentCondition WHERE time > ?");
+			pstmt.setLong(1, sinceWhen);
+			rs = pstmt.executeQuery();
+			while(rs.next()) {
+				conditionIndex.put(resultSetToCurrentCondition(rs));
+			}
+			log.info("indexed " + readingIndex.size() + " readings and " + conditionIndex.size() + " conditions");
 		} catch(SQLException sqle) {
 			log.info(sqle.getMessage());
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Receives archive readings one at a time from forEachArchiveReading. The
+	 * reading object is reused for every row, so copy anything you keep.
+	 */
+	public interface ArchiveReadingHandler {
+		void handle(BarometerReading br);
+	}
+	
+	/**
+	 * Hand over the location, time, pressure and user of every archive reading since
+	 * sinceWhen, roughly oldest first. Recent windows come from the hot archive; older
+	 * ones are streamed from the database through a cursor.
+	 * @param sinceWhen
+	 * @param handler
+	 * @return the number of readings handed over, or -1 if the query failed
+	 */
+	public int forEachArchiveReading(long sinceWhen, ArchiveReadingHandler handler) {
+		int rows = hotArchive.forEach(sinceWhen, handler);
+		if(rows >= 0) {
+			return rows;
+		}
+		return replayArchiveReadings(sinceWhen, handler);
+	}
+	
+	/*
+	 * From the archive log when it covers the window, otherwise from the database.
+	 * A log replay that fails only falls back to the database if it hadn't handed
+	 * anything over yet; otherwise the handler would see those readings twice.
+	 */
+	private int replayArchiveReadings(long sinceWhen, final ArchiveReadingHandler handler) {
+		ArchiveLog archiveLog = this.archiveLog;
+		if(archiveLog != null && archiveLog.covers(sinceWhen)) {
+			final int[] handed = {0};
+			try {
+				return archiveLog.replay(sinceWhen, new ArchiveReadingHandler() {
+					public void handle(BarometerReading br) {
+						handed[0]++;
+						handler.handle(br);
+					}
+				});
+			} catch(IOException ioe) {
+				log.info("archive log replay failed after " + handed[0] + " readings: " + ioe.getMessage());
+				if(handed[0] > 0) {
+					return -1;
+				}
+			}
 		}
+		return streamArchiveReadings(sinceWhen, handler);
 	}
 	
-	public void connectToDatabase() {
+	private int streamArchiveReadings(long sinceWhen, ArchiveReadingHandler handler) {
+		Connection db = null;
+		PreparedStatement pstmt = null;
 		try {
-			Class.forName("org.postgresql.Driver");
-			String url = "jdbc:postgresql://localhost/"; // LIVE: breadings // DEV: dev_archive
-			Properties props = new Properties();
-			props.setProperty("user","USER");
-			props.setProperty("password","PASS");
-			db = DriverManager.getConnection(url, props);
-			connected = true;
+			db = pool.getConnection();
+			db.setAutoCommit(false);
+			// Readings dated well ahead of now are from phones with their clocks wrong; leave them out
+			pstmt = db.prepareStatement("select latitude, longitude, daterecorded, reading, text from archive where daterecorded > ? and daterecorded <= ? order by daterecorded");
+			pstmt.setFetchSize(CURSOR_FETCH_SIZE);
+			pstmt.setLong(1, sinceWhen);
+			pstmt.setLong(2, System.currentTimeMillis() + BarometerReading.MAX_CLOCK_AHEAD);
+			ResultSet rs = pstmt.executeQuery();
+			BarometerReading br = new BarometerReading();
+			int rows = 0;
+			while(rs.next()) {
+				br.setLatitude(rs.getDouble("latitude"));
+				br.setLongitude(rs.getDouble("longitude"));
+				br.setTime(rs.getDouble("daterecorded"));
+				br.setReading(rs.getDouble("reading"));
+				br.setAndroidId(rs.getString("text"));
+				handler.handle(br);
+				rows++;
+			}
+			db.commit();
+			return rows;
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return -1;
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Load the last few days of the archive into the hot archive. Called once at
+	 * startup, before anything reads from it; after that the write path keeps it current.
+	 */
+	public void warmHotArchive() {
+		long sinceWhen = System.currentTimeMillis() - HOT_ARCHIVE_RETENTION;
+		int rows = replayArchiveReadings(sinceWhen, new ArchiveReadingHandler() {
+			public void handle(BarometerReading br) {
+				hotArchive.add(br);
+			}
+		});
+		if(rows >= 0) {
+			hotArchive.warmed(sinceWhen);
+		}
+		log.info(hotArchive.toString());
+	}
+	
+	/**
+	 * Feed the last TENDENCY_HOURS of the archive to the tendency engine, oldest
+	 * first. Called once at startup; after that the write path keeps it current.
+	 */
+	public void warmTendency() {
+		int rows = forEachArchiveReading(System.currentTimeMillis() - getTendencyWindow(), new ArchiveReadingHandler() {
+			public void handle(BarometerReading br) {
+				// the engine copies what it needs
+				tendency.add(br);
+			}
+		});
+		log.info("tendency from " + rows + " readings in " + tendency.size() + " cells");
+	}
+	
+	// How far back tendencies look, in ms
+	public long getTendencyWindow() {
+		return (long) (TENDENCY_HOURS * 60 * 60 * 1000);
+	}
+	
+	// hPa per hour below which pressure counts as steady
+	public double getSteadySlope() {
+		return TENDENCY_DELTA / 3;
+	}
+	
+	/**
+	 * One phone's own tendency over the tendency window: its archived readings
+	 * fitted by least squares, with unreliable readings and outliers left out.
+	 * @return rising, falling, steady or unknown
+	 */
+	public String getUserTendency(String userId) {
+		long now = System.currentTimeMillis();
+		ArrayList<BarometerReading> recents = new ArrayList<BarometerReading>();
+		Connection db = null;
+		PreparedStatement pstmt = null;
+		try {
+			db = pool.getConnection();
+			pstmt = db.prepareStatement("select * from archive where text=? and daterecorded > ? and daterecorded <= ? order by daterecorded");
+			pstmt.setString(1, userId);
+			pstmt.setLong(2, now - getTendencyWindow());
+			pstmt.setLong(3, now + BarometerReading.MAX_CLOCK_AHEAD);
+			ResultSet rs = pstmt.executeQuery();
+			while(rs.next()) {
+				BarometerReading br = resultSetToBarometerReading(rs);
+				if(br != null) {
+					recents.add(br);
+				}
+			}
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+			return "unknown";
+		} finally {
+			closeStatement(pstmt);
+			pool.release(db);
+		}
+		return ScienceHandler.findTendencyLeastSquares(recents, getSteadySlope());
+	}
+	
+	public void cleanDatabase() {
+		Connection db = null;
+		Statement stmt = null;
+		try {
+			db = pool.getConnection();
+			stmt = db.createStatement();
+			stmt.execute("DELETE FROM Readings");
+			stmt.execute("DELETE FROM Archive");
+			stmt.execute("DELETE FROM CurrentCondition");
+			stmt.execute("DELETE FROM CurrentConditionArchive");
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+		} finally {
+			closeStatement(stmt);
+			pool.release(db);
+		}
+	}
+	
+	static void closeStatement(Statement stmt) {
+		if(stmt == null) {
 			return;
 		}
-		catch(SQLException e) {
-			log.info("sqle " + e.getMessage());
-			connected = false;
+		try {
+			stmt.close();
+		} catch(SQLException sqle) {
+			log.info(sqle.getMessage());
+		}
+	}
+	
+	// Set up the connection pool and open a first connection to check the settings.
+	public boolean connectToDatabase(int poolSize) {
+		try {
+			Class.forName("org.postgresql.Driver");
 		}
 		catch(ClassNotFoundException cnfe) {
 			log.info("class nfe " + cnfe.getMessage());
-			connected = false;
+		}
+		String url = "jdbc:postgresql://localhost/"; // LIVE: breadings // DEV: dev_archive
+		Properties props = new Properties();
+		props.setProperty("user","USER");
+		props.setProperty("password","PASS");
+		pool = new ConnectionPool(url, props, poolSize, POOL_ACQUIRE_TIMEOUT);
+		try {
+			pool.release(pool.getConnection());
+			return true;
+		} catch(SQLException e) {
+			log.info("sqle " + e.getMessage());
+			return false;
+		}
+	}
+	
+	// Connection pool usage: size, waits, timeouts
+	public String getPoolStatistics() {
+		if(pool == null) {
+			return "no connection pool";
+		}
+		return pool.toString();
+	}
+	
+	public void close() {
+		ranking.stop();
+		trendMap.stop();
+		synchronized(this) {
+			if(archiveMaintenance != null) {
+				archiveMaintenance.stop();
+			}
+			if(archiveLog != null) {
+				archiveLog.close();
+				archiveLog = null;
+			}
+		}
+		if(pool != null) {
+			pool.close();
 		}
 	}
 	
 	public DatabaseHelper () {
-		connectToDatabase();
-		if(!connected) {
+		this(Integer.getInteger("barometer.db.poolSize", DEFAULT_POOL_SIZE));
+	}
+	
+	public DatabaseHelper (int poolSize) {
+		if(!connectToDatabase(poolSize)) {
 			System.out.println("unable to connect to the database");
 		}
 	}
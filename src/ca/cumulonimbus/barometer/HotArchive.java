@@ -0,0 +1,316 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The last few days of the archive in memory, column by column, so the
+ * busy analytics (tendency, trend map, charts, counts) can scan it without
+ * going to the database or making an object per row.
+ *
+ * Rows are kept in a fixed-size ring of primitive arrays in the order they
+ * arrive, which is close to time order. User ids are interned to ints, and
+ * each row links back to the same user's previous row, so one user's
+ * readings can be walked without scanning everyone's. The oldest rows make
+ * way when the ring is full or once they're older than the retention.
+ *
+ * The store only answers for times it holds completely: from where it was
+ * warmed from the database, or from the newest row it has had to drop,
+ * whichever is later. Callers check covers() and go to the database
+ * otherwise. Reads share a lock and writes take it exclusively.
+ */
+public class HotArchive {
+
+	private final int capacity;
+	private final long retention;
+
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final double[] readings;
+	private final long[] times;
+	// interned user, or -1 once the user's data has been deleted
+	private final int[] users;
+	// row number of the same user's previous row, or -1
+	private final long[] previous;
+
+	// Rows are numbered from 0 as they arrive; row r lives in slot r % capacity
+	private long next = 0;
+	private long oldest = 0;
+	private long warmedFrom = Long.MAX_VALUE;
+	private long newestDropped = Long.MIN_VALUE;
+
+	private final HashMap<String, Integer> userIds = new HashMap<String, Integer>();
+	// each interned user's name and newest row
+	private String[] names = new String[1024];
+	private long[] lastRow = new long[1024];
+	private int[] freeIds = new int[64];
+	private int freeCount = 0;
+	private int nextId = 0;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param capacity rows held at most
+	 * @param retention ms a row is kept after its time
+	 */
+	public HotArchive(int capacity, long retention) {
+		this.capacity = capacity;
+		this.retention = retention;
+		latitudes = new double[capacity];
+		longitudes = new double[capacity];
+		readings = new double[capacity];
+		times = new long[capacity];
+		users = new int[capacity];
+		previous = new long[capacity];
+	}
+
+	public void add(BarometerReading br) {
+		if(br == null || br.getAndroidId() == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			long time = Math.round(br.getTime());
+			long now = System.currentTimeMillis();
+			long cutoff = now - retention;
+			expire(cutoff, now);
+			if(time < cutoff) {
+				// a late arrival that's already too old to keep
+				return;
+			}
+			if(time > now + BarometerReading.MAX_CLOCK_AHEAD) {
+				// from a phone whose clock is ahead; it would hold up expiry and coverage
+				return;
+			}
+			if(next - oldest == capacity) {
+				drop(now);
+			}
+			int user = intern(br.getAndroidId());
+			int slot = (int) (next % capacity);
+			latitudes[slot] = br.getLatitude();
+			longitudes[slot] = br.getLongitude();
+			readings[slot] = br.getReading();
+			times[slot] = time;
+			users[slot] = user;
+			previous[slot] = lastRow[user];
+			lastRow[user] = next;
+			next++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Say that everything from the archive after sinceWhen has been added,
+	 * so the store can answer for that window.
+	 */
+	public void warmed(long sinceWhen) {
+		lock.writeLock().lock();
+		try {
+			warmedFrom = sinceWhen;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Whether the store holds every archive reading after sinceWhen.
+	 */
+	public boolean covers(long sinceWhen) {
+		lock.readLock().lock();
+		try {
+			return sinceWhen >= warmedFrom && sinceWhen >= newestDropped;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Hand every reading after sinceWhen to the handler, in the order they
+	 * arrived. One reading object is reused and only location, time, pressure
+	 * and user are set.
+	 * @return the number of readings, or -1 if the store doesn't cover sinceWhen
+	 */
+	public int forEach(long sinceWhen, DatabaseHelper.ArchiveReadingHandler handler) {
+		lock.readLock().lock();
+		try {
+			if(sinceWhen < warmedFrom || sinceWhen < newestDropped) {
+				return -1;
+			}
+			BarometerReading br = new BarometerReading();
+			int count = 0;
+			for(long row = oldest; row < next; row++) {
+				int slot = (int) (row % capacity);
+				if(times[slot] <= sinceWhen || users[slot] < 0) {
+					continue;
+				}
+				br.setLatitude(latitudes[slot]);
+				br.setLongitude(longitudes[slot]);
+				br.setTime(times[slot]);
+				br.setReading(readings[slot]);
+				br.setAndroidId(names[users[slot]]);
+				handler.handle(br);
+				count++;
+			}
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * How many readings a user has after sinceWhen.
+	 * @return the count, or -1 if the store doesn't cover sinceWhen
+	 */
+	public long countSince(String userId, long sinceWhen) {
+		lock.readLock().lock();
+		try {
+			if(sinceWhen < warmedFrom || sinceWhen < newestDropped) {
+				return -1;
+			}
+			Integer user = userIds.get(userId);
+			if(user == null) {
+				return 0;
+			}
+			long count = 0;
+			for(long row = lastRow[user]; row >= oldest; row = previous[(int) (row % capacity)]) {
+				if(times[(int) (row % capacity)] > sinceWhen) {
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Sort a user's readings after start into equal time buckets of width ms,
+	 * keeping each bucket's count, summed time and lowest and highest pressure.
+	 * Buckets with no readings are left at a count of 0.
+	 * @return false if the store doesn't cover start
+	 */
+	public boolean bucketsForUser(String userId, long start, double width, int[] counts, double[] timeSums, double[] lows, double[] highs) {
+		lock.readLock().lock();
+		try {
+			if(start < warmedFrom || start < newestDropped) {
+				return false;
+			}
+			Arrays.fill(counts, 0);
+			Integer user = userIds.get(userId);
+			if(user == null) {
+				return true;
+			}
+			for(long row = lastRow[user]; row >= oldest; row = previous[(int) (row % capacity)]) {
+				int slot = (int) (row % capacity);
+				if(times[slot] <= start) {
+					continue;
+				}
+				int bucket = (int) Math.floor((times[slot] - start) / width);
+				if(bucket >= counts.length) {
+					// newer than the window, like a phone with its clock ahead
+					continue;
+				}
+				if(counts[bucket] == 0) {
+					timeSums[bucket] = 0;
+					lows[bucket] = readings[slot];
+					highs[bucket] = readings[slot];
+				}
+				counts[bucket]++;
+				timeSums[bucket] += times[slot];
+				lows[bucket] = Math.min(lows[bucket], readings[slot]);
+				highs[bucket] = Math.max(highs[bucket], readings[slot]);
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Forget a user, as when they ask for their data to be deleted
+	public void remove(String userId) {
+		lock.writeLock().lock();
+		try {
+			Integer user = userIds.remove(userId);
+			if(user == null) {
+				return;
+			}
+			for(long row = lastRow[user]; row >= oldest; row = previous[(int) (row % capacity)]) {
+				users[(int) (row % capacity)] = -1;
+			}
+			release(user);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return (int) (next - oldest);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Drop rows that have aged out. Rows arrive roughly in time order, so stop at the first young one.
+	private void expire(long cutoff, long now) {
+		while(next > oldest && times[(int) (oldest % capacity)] < cutoff) {
+			drop(now);
+		}
+	}
+
+	// Drop the oldest row. Coverage never moves past now, whatever the row's time.
+	private void drop(long now) {
+		int slot = (int) (oldest % capacity);
+		newestDropped = Math.max(newestDropped, Math.min(times[slot], now));
+		int user = users[slot];
+		oldest++;
+		if(user >= 0 && lastRow[user] < oldest) {
+			// that was the user's last row
+			userIds.remove(names[user]);
+			release(user);
+		}
+	}
+
+	private int intern(String userId) {
+		Integer user = userIds.get(userId);
+		if(user != null) {
+			return user;
+		}
+		int id;
+		if(freeCount > 0) {
+			id = freeIds[--freeCount];
+		} else {
+			id = nextId++;
+			if(id == lastRow.length) {
+				names = Arrays.copyOf(names, id * 2);
+				lastRow = Arrays.copyOf(lastRow, id * 2);
+			}
+		}
+		names[id] = userId;
+		lastRow[id] = -1;
+		userIds.put(userId, id);
+		return id;
+	}
+
+	private void release(int user) {
+		names[user] = null;
+		lastRow[user] = -1;
+		if(freeCount == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+		}
+		freeIds[freeCount++] = user;
+	}
+
+	@Override
+	public String toString() {
+		lock.readLock().lock();
+		try {
+			return "hot archive: " + (next - oldest) + " of " + capacity + " rows, " + userIds.size() + " users";
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
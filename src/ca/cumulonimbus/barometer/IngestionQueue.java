@@ -0,0 +1,178 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Accept barometer readings from request threads and write them to the
+ * database in the background. Readings wait in a bounded queue; writer
+ * threads drain it in batches and commit each batch in one transaction.
+ *
+ * When the queue is full, submit() waits up to offerTimeout for room and
+ * then gives up, so callers can push back on the phone instead of piling
+ * up work in memory.
+ */
+public class IngestionQueue {
+	private static String logName = "ca.cumulonimbus.barometer.IngestionQueue";
+	private static Logger log = Logger.getLogger(logName);
+
+	// How long an idle writer waits for more readings to fill out a batch
+	private static final long LINGER_MS = 20;
+	private static final long POLL_MS = 250;
+
+	private final DatabaseHelper dh;
+	private final ArrayBlockingQueue<BarometerReading> queue;
+	private final int batchSize;
+	private final long offerTimeoutMs;
+	private final Thread[] writers;
+	private volatile boolean running = false;
+
+	// Metrics
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong written = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+
+	public IngestionQueue(DatabaseHelper dh, int capacity, int writerCount, int batchSize, long offerTimeoutMs) {
+		this.dh = dh;
+		this.queue = new ArrayBlockingQueue<BarometerReading>(Math.max(1, capacity));
+		this.batchSize = Math.max(1, batchSize);
+		this.offerTimeoutMs = offerTimeoutMs;
+		this.writers = new Thread[Math.max(1, writerCount)];
+	}
+
+	public void start() {
+		running = true;
+		for(int i = 0; i < writers.length; i++) {
+			writers[i] = new Thread(new Writer(), "ingestion-writer-" + i);
+			writers[i].setDaemon(true);
+			writers[i].start();
+		}
+	}
+
+	/**
+	 * Stop accepting readings, let the writers flush what is queued and wait
+	 * for them to finish.
+	 * @param timeoutMs
+	 */
+	public void shutdown(long timeoutMs) {
+		running = false;
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for(Thread writer : writers) {
+			if(writer == null) {
+				continue;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				writer.join(Math.max(1, remaining));
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if(queue.size() > 0) {
+			log.info("ingestion shut down with " + queue.size() + " readings unwritten");
+		}
+	}
+
+	/**
+	 * Queue a reading to be written. Blocks for up to offerTimeout while the
+	 * queue is full.
+	 * @param reading
+	 * @return false if the queue stayed full or is shut down
+	 */
+	public boolean submit(BarometerReading reading) {
+		if(!running) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		try {
+			if(queue.offer(reading, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+				accepted.incrementAndGet();
+				return true;
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			ArrayList<BarometerReading> batch = new ArrayList<BarometerReading>(batchSize);
+			while(running || !queue.isEmpty()) {
+				try {
+					BarometerReading first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+					if(first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, batchSize - batch.size());
+					// Group commit: give other submitters a moment to join a small batch
+					if(batch.size() < batchSize && running) {
+						BarometerReading next = queue.poll(LINGER_MS, TimeUnit.MILLISECONDS);
+						if(next != null) {
+							batch.add(next);
+							queue.drainTo(batch, batchSize - batch.size());
+						}
+					}
+				} catch(InterruptedException ie) {
+					// flush what we have and keep going until shut down
+				}
+				if(batch.size() > 0) {
+					write(batch);
+					batch.clear();
+				}
+			}
+		}
+
+		private void write(ArrayList<BarometerReading> batch) {
+			batches.incrementAndGet();
+			if(dh.addReadingsToDatabase(batch)) {
+				written.addAndGet(batch.size());
+				return;
+			}
+			// The batch failed as a whole. Retry row by row so one bad reading
+			// doesn't take the rest of the batch with it.
+			for(BarometerReading br : batch) {
+				if(dh.addReadingToDatabase(br)) {
+					written.incrementAndGet();
+				} else {
+					failed.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "queued: " + getQueuedCount() + ", accepted: " + getAcceptedCount() + ", rejected: " + getRejectedCount() +
+				", written: " + getWrittenCount() + ", failed: " + getFailedCount() + ", batches: " + batches.get();
+	}
+}
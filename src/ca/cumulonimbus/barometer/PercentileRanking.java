@@ -0,0 +1,195 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Rank a user's submission count against everyone else's without scanning
+ * the archive per request.
+ *
+ * We hold every user's total in memory and a sorted array of those totals.
+ * The totals are loaded from the archive in one GROUP BY at start and again
+ * every few hours to correct any drift; a reload applies the difference
+ * between the archive and the totals as they stood when it began, so readings
+ * stored while it runs aren't lost. In between, stored readings bump the
+ * totals and the sorted array is rebuilt from memory every minute if
+ * anything changed. A lookup is a binary search.
+ */
+public class PercentileRanking {
+	private static String logName = "ca.cumulonimbus.barometer.PercentileRanking";
+	private static Logger log = Logger.getLogger(logName);
+
+	private static final long RESORT_MINUTES = 1;
+	private static final long RELOAD_MINUTES = 6 * 60;
+	// A user deleted this close to a reload's start may still be in what it reads
+	private static final long REMOVAL_GRACE = 60 * 1000;
+
+	private final DatabaseHelper dh;
+	private final ConcurrentHashMap<String, AtomicLong> totals = new ConcurrentHashMap<String, AtomicLong>();
+	// Recently deleted users and when, so a reload doesn't bring them back
+	private final ConcurrentHashMap<String, Long> removed = new ConcurrentHashMap<String, Long>();
+	private volatile long[] sorted = new long[0];
+	private volatile boolean changed = false;
+	private volatile boolean loaded = false;
+	private ScheduledExecutorService scheduler;
+
+	public PercentileRanking(DatabaseHelper dh) {
+		this.dh = dh;
+	}
+
+	public synchronized void start() {
+		if(scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "percentile-ranking");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reload();
+				} catch(RuntimeException e) {
+					// keep the schedule alive; try again next time
+					log.info("ranking reload failed: " + e.getMessage());
+				}
+			}
+		}, 0, RELOAD_MINUTES, TimeUnit.MINUTES);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if(changed) {
+					resort();
+				}
+			}
+		}, RESORT_MINUTES, RESORT_MINUTES, TimeUnit.MINUTES);
+	}
+
+	public synchronized void stop() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	// A reading was stored for this user
+	public void recordSubmission(String userId) {
+		AtomicLong total = totals.get(userId);
+		if(total == null) {
+			AtomicLong created = new AtomicLong(0);
+			total = totals.putIfAbsent(userId, created);
+			if(total == null) {
+				total = created;
+			}
+		}
+		total.incrementAndGet();
+		changed = true;
+	}
+
+	public void remove(String userId) {
+		removed.put(userId, System.currentTimeMillis());
+		if(totals.remove(userId) != null) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * The percentage of users with fewer submissions than this user.
+	 * @return 0-100, or -1 until the first load has finished
+	 */
+	public double getPercentile(String userId) {
+		long[] counts = sorted;
+		if(!loaded || counts.length == 0) {
+			return -1;
+		}
+		AtomicLong total = totals.get(userId);
+		long count = (total == null) ? 0 : total.get();
+		return 100.0 * countBelow(counts, count) / counts.length;
+	}
+
+	// Number of entries strictly less than value
+	private static int countBelow(long[] counts, long value) {
+		int low = 0;
+		int high = counts.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(counts[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// Correct the totals from the archive
+	void reload() {
+		long started = System.currentTimeMillis();
+		HashMap<String, Long> before = new HashMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry : totals.entrySet()) {
+			before.put(entry.getKey(), entry.getValue().get());
+		}
+		HashMap<String, Long> fresh = dh.getSubmissionCountsByUser();
+		if(fresh == null) {
+			return;
+		}
+		for(Map.Entry<String, Long> entry : fresh.entrySet()) {
+			String userId = entry.getKey();
+			Long removedAt = removed.get(userId);
+			if(removedAt != null && removedAt >= started - REMOVAL_GRACE) {
+				continue;
+			}
+			Long old = before.get(userId);
+			long delta = entry.getValue() - ((old == null) ? 0 : old);
+			AtomicLong total = totals.get(userId);
+			if(total == null) {
+				total = totals.putIfAbsent(userId, new AtomicLong(entry.getValue()));
+				if(total == null) {
+					continue;
+				}
+				// counted from zero since the reload began
+				delta = entry.getValue();
+			}
+			total.addAndGet(delta);
+		}
+		for(Iterator<Long> it = removed.values().iterator(); it.hasNext(); ) {
+			if(it.next() < started - REMOVAL_GRACE) {
+				it.remove();
+			}
+		}
+		resort();
+		loaded = true;
+		log.info("ranking " + sorted.length + " users");
+	}
+
+	private void resort() {
+		changed = false;
+		long[] counts = new long[totals.size()];
+		int i = 0;
+		for(AtomicLong total : totals.values()) {
+			if(i == counts.length) {
+				break;
+			}
+			counts[i++] = total.get();
+		}
+		if(i < counts.length) {
+			counts = Arrays.copyOf(counts, i);
+		}
+		Arrays.sort(counts);
+		sorted = counts;
+	}
+}
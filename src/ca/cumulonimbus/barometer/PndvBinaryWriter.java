@@ -0,0 +1,120 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Write relayed readings to PNDV in a compact binary batch instead of the
+ * |-delimited text, for pulls that ask for it with format=binary.
+ *
+ * All values are big-endian, as DataOutputStream writes them. A batch is
+ * the MAGIC int and a VERSION byte, then records, each starting with a
+ * RECORD byte, and finally an END byte. A record is:
+ *
+ *   flags byte     FLAG_RAW_TIME if the time follows as a double
+ *   latitude       double
+ *   longitude      double
+ *   reading        double
+ *   time           zigzag varint ms since the previous record's time (the
+ *                  first record is relative to 0), or a double with FLAG_RAW_TIME
+ *   time zone      zigzag varint
+ *   android id     string reference
+ *   privacy        string reference
+ *   client key     string reference
+ *   location acc.  float
+ *   reading acc.   float
+ *
+ * Each string field has its own dictionary, built as the batch goes. A
+ * reference is a varint: 0 is null, 1..n is an entry already sent, and n + 1
+ * adds a new entry whose modified UTF-8 follows, as writeUTF writes it. So
+ * each android id goes over the wire once per batch, not once per reading.
+ */
+public class PndvBinaryWriter {
+	public static final String CONTENT_TYPE = "application/x-pndv-batch";
+
+	static final int MAGIC = 0x504e4456; // "PNDV"
+	static final byte VERSION = 1;
+	static final byte RECORD = 1;
+	static final byte END = 0;
+	static final byte FLAG_RAW_TIME = 1;
+
+	private final DataOutputStream out;
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> privacies = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> clientKeys = new HashMap<String, Integer>();
+	private long previousTime = 0;
+	private int count = 0;
+
+	public PndvBinaryWriter(OutputStream stream) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(stream, 8192));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+	}
+
+	public void write(BarometerReading br) throws IOException {
+		out.writeByte(RECORD);
+		double time = br.getTime();
+		long wholeTime = (long) time;
+		boolean rawTime = (wholeTime != time);
+		out.writeByte(rawTime ? FLAG_RAW_TIME : 0);
+		out.writeDouble(br.getLatitude());
+		out.writeDouble(br.getLongitude());
+		out.writeDouble(br.getReading());
+		if(rawTime) {
+			out.writeDouble(time);
+		} else {
+			writeSignedVarLong(wholeTime - previousTime);
+			previousTime = wholeTime;
+		}
+		writeSignedVarLong(br.getTimeZoneOffset());
+		writeReference(ids, br.getAndroidId());
+		writeReference(privacies, br.getSharingPrivacy());
+		writeReference(clientKeys, br.getClientKey());
+		out.writeFloat(br.getLocationAccuracy());
+		out.writeFloat(br.getReadingAccuracy());
+		count++;
+	}
+
+	// End the batch and flush it through. Does not close the underlying stream.
+	public void finish() throws IOException {
+		out.writeByte(END);
+		out.flush();
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	private void writeReference(HashMap<String, Integer> dictionary, String value) throws IOException {
+		if(value == null) {
+			writeVarLong(0);
+			return;
+		}
+		Integer index = dictionary.get(value);
+		if(index != null) {
+			writeVarLong(index);
+			return;
+		}
+		int added = dictionary.size() + 1;
+		dictionary.put(value, added);
+		writeVarLong(added);
+		out.writeUTF(value);
+	}
+
+	// Zigzag so small negative deltas stay small
+	private void writeSignedVarLong(long value) throws IOException {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	// 7 bits per byte, low bits first, high bit set on all but the last byte
+	private void writeVarLong(long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+}
@@ -0,0 +1,67 @@
+package ca.cumulonimbus.barometer;
+
+/**
+ * The pressure units readings can be shown in. Readings are stored in
+ * millibars; each unit carries its factor from millibars.
+ *
+ * Resolve the unit once with parse, then convert one value or a whole
+ * array. The array conversion is a plain multiply loop, which the JIT can
+ * unroll and vectorize.
+ */
+public enum PressureUnit {
+	// Conversion factors from http://www.csgnetwork.com/meteorologyconvtbl.html
+	MBAR("mbar", 1),
+	HPA("hPa", 1),
+	ATM("atm", 0.000986923),
+	KPA("kPa", 0.1),
+	MMHG("mmHg", 0.75006),
+	INHG("inHg", 0.02961);
+
+	private final String abbreviation;
+	private final double factor;
+
+	private PressureUnit(String abbreviation, double factor) {
+		this.abbreviation = abbreviation;
+		this.factor = factor;
+	}
+
+	/**
+	 * The unit a client asked for. Anything that mentions a unit's
+	 * abbreviation gets that unit, and anything else, null included, gets
+	 * millibars.
+	 */
+	public static PressureUnit parse(String units) {
+		if(units == null) {
+			return MBAR;
+		}
+		for(PressureUnit unit : values()) {
+			if(units.contains(unit.abbreviation)) {
+				return unit;
+			}
+		}
+		return MBAR;
+	}
+
+	public String getAbbreviation() {
+		return abbreviation;
+	}
+
+	public double fromMbar(double mbar) {
+		return mbar * factor;
+	}
+
+	/**
+	 * Convert count values from millibars into out, which may be the same array.
+	 */
+	public void fromMbar(double[] mbar, double[] out, int count) {
+		if(factor == 1) {
+			if(mbar != out) {
+				System.arraycopy(mbar, 0, out, 0, count);
+			}
+			return;
+		}
+		for(int i = 0; i < count; i++) {
+			out[i] = mbar[i] * factor;
+		}
+	}
+}
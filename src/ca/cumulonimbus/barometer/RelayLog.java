@@ -0,0 +1,275 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Append-only on-disk log behind the RelayQueue, so relayed readings and
+ * consumer offsets survive a restart.
+ *
+ * The log is a series of segment files named relay-[first sequence].log,
+ * each a run of records in sequence order. A new segment is started on every
+ * open and whenever the current one reaches SEGMENT_RECORDS. Segments every
+ * consumer has read past are deleted. Consumer offsets live next to the
+ * segments in relay.offsets.
+ *
+ * The RelayQueue sender thread does all the writing. Reads for consumers
+ * that fell behind the in-memory ring come from request threads, so access
+ * is synchronized.
+ */
+public class RelayLog {
+	private static String logName = "ca.cumulonimbus.barometer.RelayLog";
+	private static Logger log = Logger.getLogger(logName);
+
+	private static final int SEGMENT_RECORDS = 100000;
+	private static final String PREFIX = "relay-";
+	private static final String SUFFIX = ".log";
+	private static final String OFFSETS = "relay.offsets";
+
+	/**
+	 * Receives records as they are read back from the log.
+	 */
+	public interface RecordHandler {
+		// Return false to stop reading
+		boolean handle(long sequence, BarometerReading reading);
+	}
+
+	private final File directory;
+	private DataOutputStream current;
+	private int currentRecords = 0;
+	private long nextSequence = 0;
+
+	public RelayLog(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Find where the existing log ends. Appending starts in a fresh segment.
+	 * @return the sequence number the next record should get
+	 */
+	public synchronized long open() throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create relay log directory " + directory);
+		}
+		long[] segments = segments();
+		nextSequence = 0;
+		if(segments.length > 0) {
+			// Read through the newest segment to find its last complete record
+			final long[] last = {segments[segments.length - 1] - 1};
+			readSegment(segments[segments.length - 1], 0, new RecordHandler() {
+				public boolean handle(long sequence, BarometerReading reading) {
+					last[0] = sequence;
+					return true;
+				}
+			});
+			nextSequence = last[0] + 1;
+		}
+		return nextSequence;
+	}
+
+	public synchronized void append(long sequence, BarometerReading br) throws IOException {
+		if(current == null || currentRecords >= SEGMENT_RECORDS) {
+			roll(sequence);
+		}
+		current.writeLong(sequence);
+		current.writeDouble(br.getLatitude());
+		current.writeDouble(br.getLongitude());
+		current.writeDouble(br.getReading());
+		current.writeDouble(br.getTime());
+		current.writeInt(br.getTimeZoneOffset());
+		writeString(br.getAndroidId());
+		writeString(br.getSharingPrivacy());
+		writeString(br.getClientKey());
+		current.writeFloat(br.getLocationAccuracy());
+		current.writeFloat(br.getReadingAccuracy());
+		currentRecords++;
+		nextSequence = sequence + 1;
+	}
+
+	public synchronized void flush() throws IOException {
+		if(current != null) {
+			current.flush();
+		}
+	}
+
+	public synchronized void close() {
+		if(current != null) {
+			try {
+				current.close();
+			} catch(IOException ioe) {
+				log.info(ioe.getMessage());
+			}
+			current = null;
+		}
+	}
+
+	private void roll(long firstSequence) throws IOException {
+		close();
+		// A segment with this name can only be left over holding no complete records
+		File file = new File(directory, PREFIX + firstSequence + SUFFIX);
+		current = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false), 64 * 1024));
+		currentRecords = 0;
+	}
+
+	/**
+	 * Read records from sequence from onwards, in order, until the handler says stop
+	 * or the log runs out.
+	 */
+	public synchronized void read(long from, RecordHandler handler) throws IOException {
+		flush();
+		long[] segments = segments();
+		for(int i = 0; i < segments.length; i++) {
+			boolean lastSegment = (i == segments.length - 1);
+			if(!lastSegment && segments[i + 1] <= from) {
+				continue;
+			}
+			if(!readSegment(segments[i], from, handler)) {
+				return;
+			}
+		}
+	}
+
+	// Returns false if the handler asked to stop
+	private boolean readSegment(long first, long from, RecordHandler handler) throws IOException {
+		File file = new File(directory, PREFIX + first + SUFFIX);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			while(true) {
+				long sequence;
+				BarometerReading br = new BarometerReading();
+				try {
+					sequence = in.readLong();
+					br.setLatitude(in.readDouble());
+					br.setLongitude(in.readDouble());
+					br.setReading(in.readDouble());
+					br.setTime(in.readDouble());
+					br.setTimeZoneOffset(in.readInt());
+					br.setAndroidId(readString(in));
+					br.setSharingPrivacy(readString(in));
+					br.setClientKey(readString(in));
+					br.setLocationAccuracy(in.readFloat());
+					br.setReadingAccuracy(in.readFloat());
+				} catch(EOFException eof) {
+					// end of segment, or a record cut short by a crash
+					return true;
+				}
+				if(sequence >= from && !handler.handle(sequence, br)) {
+					return false;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// The first sequence still on disk
+	public synchronized long oldestSequence() {
+		long[] segments = segments();
+		return (segments.length > 0) ? segments[0] : nextSequence;
+	}
+
+	/**
+	 * Delete segments whose records are all below sequence. The segment being
+	 * written is always kept.
+	 */
+	public synchronized void deleteBefore(long sequence) {
+		long[] segments = segments();
+		for(int i = 0; i < segments.length - 1; i++) {
+			if(segments[i + 1] <= sequence) {
+				File file = new File(directory, PREFIX + segments[i] + SUFFIX);
+				if(!file.delete()) {
+					log.info("unable to delete relay segment " + file);
+				}
+			}
+		}
+	}
+
+	public Properties readOffsets() {
+		Properties offsets = new Properties();
+		File file = new File(directory, OFFSETS);
+		if(file.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					offsets.load(in);
+				} finally {
+					in.close();
+				}
+			} catch(IOException ioe) {
+				log.info("unable to read relay offsets: " + ioe.getMessage());
+			}
+		}
+		return offsets;
+	}
+
+	// Write to a temporary file and rename, so a crash leaves the old offsets intact
+	public void writeOffsets(Properties offsets) throws IOException {
+		File temp = new File(directory, OFFSETS + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			offsets.store(out, "relay consumer offsets");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		File file = new File(directory, OFFSETS);
+		if(!temp.renameTo(file)) {
+			file.delete();
+			if(!temp.renameTo(file)) {
+				throw new IOException("unable to replace " + file);
+			}
+		}
+	}
+
+	// First sequence numbers of the segments on disk, oldest first
+	private long[] segments() {
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if(names == null) {
+			return new long[0];
+		}
+		ArrayList<Long> firsts = new ArrayList<Long>();
+		for(String name : names) {
+			try {
+				firsts.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			} catch(NumberFormatException nfe) {
+				// not one of ours
+			}
+		}
+		long[] result = new long[firsts.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = firsts.get(i);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private void writeString(String value) throws IOException {
+		current.writeBoolean(value != null);
+		if(value != null) {
+			current.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		if(in.readBoolean()) {
+			return in.readUTF();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,396 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Readings waiting to be pulled by PNDV and any other downstream consumer.
+ *
+ * Every appended reading gets the next sequence number and goes into a ring
+ * holding the most recent readings. Appending takes no locks, so request
+ * threads never wait on each other here. Each consumer has its own offset,
+ * the next sequence it hasn't taken yet, and pulls resume from there.
+ * Consumers don't see each other's offsets, so several can read the same
+ * readings without taking them from one another. Only the consumers named
+ * when the queue is made are accepted, since every offset holds back the
+ * on-disk log.
+ *
+ * With a log directory, a background sender copies the ring to an
+ * append-only RelayLog and saves the offsets, so nothing is lost on restart
+ * and a consumer that falls behind the ring reads from disk. A consumer more
+ * than maxLag readings behind has its offset moved up to maxLag behind, so
+ * one that stops pulling can't keep the log growing forever. The same thread
+ * tells the distribution server when another notifyEvery readings are
+ * waiting, using one reused HTTP client.
+ */
+public class RelayQueue {
+	private static String logName = "ca.cumulonimbus.barometer.RelayQueue";
+	private static Logger log = Logger.getLogger(logName);
+
+	// How often the sender wakes up without being poked
+	private static final long SENDER_INTERVAL_MS = 1000;
+
+	private static class Slot {
+		final long sequence;
+		final BarometerReading reading;
+
+		Slot(long sequence, BarometerReading reading) {
+			this.sequence = sequence;
+			this.reading = reading;
+		}
+	}
+
+	/**
+	 * Readings handed to a consumer, and the offset to commit once they're delivered.
+	 */
+	public static class Batch {
+		ArrayList<BarometerReading> readings = new ArrayList<BarometerReading>();
+		long nextOffset;
+
+		public ArrayList<BarometerReading> getReadings() {
+			return readings;
+		}
+
+		public long getNextOffset() {
+			return nextOffset;
+		}
+	}
+
+	private final int capacity;
+	private final AtomicReferenceArray<Slot> ring;
+	private final AtomicLong nextSequence = new AtomicLong(0);
+	private final Set<String> consumers;
+	private final ConcurrentHashMap<String, AtomicLong> offsets = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile boolean offsetsChanged = false;
+
+	private final RelayLog relayLog;
+	private final long maxLag;
+	// Everything below this is on disk. Only the sender touches it.
+	private long persisted = 0;
+
+	private final String notifyURL;
+	private final int notifyEvery;
+	private volatile boolean notifyPending = false;
+
+	private volatile boolean running = false;
+	private Thread sender;
+
+	/**
+	 * @param capacity readings kept in memory
+	 * @param consumers the consumer names that may read and commit
+	 * @param logDirectory where to keep the on-disk log, or null to keep readings in memory only
+	 * @param maxLag most readings the log keeps for a consumer that hasn't pulled them; 0 for no limit
+	 * @param notifyURL GET this when notifyEvery more readings are waiting; empty for no notices
+	 * @param notifyEvery
+	 */
+	public RelayQueue(int capacity, Set<String> consumers, File logDirectory, long maxLag, String notifyURL, int notifyEvery) {
+		this.capacity = Math.max(1, capacity);
+		this.consumers = consumers;
+		this.ring = new AtomicReferenceArray<Slot>(this.capacity);
+		this.relayLog = (logDirectory != null) ? new RelayLog(logDirectory) : null;
+		this.maxLag = maxLag;
+		this.notifyURL = notifyURL;
+		this.notifyEvery = Math.max(1, notifyEvery);
+	}
+
+	/**
+	 * Recover from the on-disk log, if there is one, and start the sender.
+	 */
+	public void start() {
+		if(relayLog != null) {
+			try {
+				long next = relayLog.open();
+				// Reload the tail of the log into the ring
+				final long from = Math.max(0, next - capacity);
+				relayLog.read(from, new RelayLog.RecordHandler() {
+					public boolean handle(long sequence, BarometerReading reading) {
+						ring.set(index(sequence), new Slot(sequence, reading));
+						return true;
+					}
+				});
+				nextSequence.set(next);
+				persisted = next;
+				Properties saved = relayLog.readOffsets();
+				for(String consumer : saved.stringPropertyNames()) {
+					if(!consumers.contains(consumer)) {
+						// no longer configured; forget it so it stops holding back the log
+						log.info("dropping offset of relay consumer " + consumer);
+						offsetsChanged = true;
+						continue;
+					}
+					long offset = Math.min(next, Long.parseLong(saved.getProperty(consumer)));
+					offsets.put(consumer, new AtomicLong(offset));
+				}
+				log.info("relay recovered at sequence " + next + " with " + offsets.size() + " consumers");
+			} catch(IOException ioe) {
+				log.info("unable to recover the relay log: " + ioe.getMessage());
+			} catch(NumberFormatException nfe) {
+				log.info("bad relay offsets: " + nfe.getMessage());
+			}
+		}
+		running = true;
+		sender = new Thread(new Sender(), "relay-sender");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	public void shutdown() {
+		running = false;
+		if(sender != null) {
+			LockSupport.unpark(sender);
+			try {
+				sender.join(10 * 1000);
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(relayLog != null) {
+			relayLog.close();
+		}
+	}
+
+	/**
+	 * Add a reading for the consumers. Safe to call from any number of threads.
+	 * @return the reading's sequence number
+	 */
+	public long append(BarometerReading br) {
+		long sequence = nextSequence.getAndIncrement();
+		ring.set(index(sequence), new Slot(sequence, br));
+		if((sequence + 1) % notifyEvery == 0) {
+			notifyPending = true;
+			Thread s = sender;
+			if(s != null) {
+				LockSupport.unpark(s);
+			}
+		}
+		return sequence;
+	}
+
+	public boolean isConsumer(String consumer) {
+		return consumers.contains(consumer);
+	}
+
+	/**
+	 * Readings for a consumer, starting at its committed offset, or at from if from is
+	 * not negative. An explicit from is kept between the oldest reading still held and
+	 * the next one to come. Nothing is marked as taken until commit is called.
+	 * @param consumer
+	 * @param from
+	 * @param max
+	 */
+	public Batch read(String consumer, long from, int max) {
+		long start = getOffset(consumer);
+		if(from >= 0) {
+			start = Math.max(oldestRetained(), Math.min(from, nextSequence.get()));
+		}
+		final Batch batch = new Batch();
+		batch.nextOffset = start;
+
+		long oldestInRing = Math.max(0, nextSequence.get() - capacity);
+		if(start < oldestInRing) {
+			if(relayLog != null) {
+				// Fell behind the ring. Catch up from disk first.
+				final int limit = max;
+				final long stop = oldestInRing;
+				try {
+					relayLog.read(start, new RelayLog.RecordHandler() {
+						public boolean handle(long sequence, BarometerReading reading) {
+							if(sequence >= stop || batch.readings.size() >= limit) {
+								return false;
+							}
+							batch.readings.add(reading);
+							batch.nextOffset = sequence + 1;
+							return true;
+						}
+					});
+				} catch(IOException ioe) {
+					log.info("relay log read failed: " + ioe.getMessage());
+				}
+				if(batch.readings.size() >= max || batch.nextOffset < oldestInRing) {
+					return batch;
+				}
+			} else {
+				log.info("relay consumer " + consumer + " lost " + (oldestInRing - start) + " readings");
+				batch.nextOffset = oldestInRing;
+			}
+		}
+
+		long sequence = batch.nextOffset;
+		while(batch.readings.size() < max) {
+			Slot slot = ring.get(index(sequence));
+			if(slot == null || slot.sequence < sequence) {
+				// not published yet
+				break;
+			}
+			if(slot.sequence > sequence) {
+				// overwritten while we were reading; skip ahead
+				sequence = Math.max(sequence + 1, nextSequence.get() - capacity);
+				continue;
+			}
+			batch.readings.add(slot.reading);
+			sequence++;
+		}
+		batch.nextOffset = sequence;
+		return batch;
+	}
+
+	// Mark everything below offset as delivered to this consumer
+	public void commit(String consumer, long offset) {
+		if(!consumers.contains(consumer)) {
+			return;
+		}
+		offset = Math.min(offset, nextSequence.get());
+		AtomicLong current = offsets.get(consumer);
+		if(current == null) {
+			AtomicLong created = new AtomicLong(offset);
+			current = offsets.putIfAbsent(consumer, created);
+			if(current == null) {
+				offsetsChanged = true;
+				return;
+			}
+		}
+		current.set(offset);
+		offsetsChanged = true;
+	}
+
+	public long getOffset(String consumer) {
+		AtomicLong offset = offsets.get(consumer);
+		if(offset != null) {
+			return offset.get();
+		}
+		// A new consumer starts with what's still in memory
+		return Math.max(0, nextSequence.get() - capacity);
+	}
+
+	// The oldest sequence a read can still return
+	private long oldestRetained() {
+		long oldestInRing = Math.max(0, nextSequence.get() - capacity);
+		if(relayLog == null) {
+			return oldestInRing;
+		}
+		return Math.min(oldestInRing, relayLog.oldestSequence());
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % capacity);
+	}
+
+	private class Sender implements Runnable {
+		private DefaultHttpClient httpClient;
+
+		@Override
+		public void run() {
+			while(running) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SENDER_INTERVAL_MS));
+				persist();
+				if(notifyPending) {
+					notifyPending = false;
+					sendNotice();
+				}
+			}
+			persist();
+			if(httpClient != null) {
+				httpClient.getConnectionManager().shutdown();
+			}
+		}
+
+		// Copy newly appended readings to the log and save offsets that moved
+		private void persist() {
+			if(relayLog == null) {
+				return;
+			}
+			try {
+				long end = nextSequence.get();
+				if(persisted < end - capacity) {
+					log.info("relay log skipped " + (end - capacity - persisted) + " readings overwritten in memory");
+					persisted = end - capacity;
+				}
+				while(persisted < end) {
+					Slot slot = ring.get(index(persisted));
+					if(slot == null || slot.sequence < persisted) {
+						// appended but not yet published; pick it up next time
+						break;
+					}
+					if(slot.sequence == persisted) {
+						relayLog.append(persisted, slot.reading);
+					}
+					persisted++;
+				}
+				relayLog.flush();
+
+				// Give up the oldest readings of consumers too far behind
+				long floor = end - maxLag;
+				if(maxLag > 0 && floor > 0) {
+					for(Map.Entry<String, AtomicLong> entry : offsets.entrySet()) {
+						long offset = entry.getValue().get();
+						if(offset < floor && entry.getValue().compareAndSet(offset, floor)) {
+							log.info("relay consumer " + entry.getKey() + " was " + (end - offset) + " readings behind; dropped its oldest " + (floor - offset));
+							offsetsChanged = true;
+						}
+					}
+				}
+
+				if(offsetsChanged) {
+					offsetsChanged = false;
+					Properties saved = new Properties();
+					long slowest = Long.MAX_VALUE;
+					for(Map.Entry<String, AtomicLong> entry : offsets.entrySet()) {
+						long offset = entry.getValue().get();
+						saved.setProperty(entry.getKey(), Long.toString(offset));
+						slowest = Math.min(slowest, offset);
+					}
+					relayLog.writeOffsets(saved);
+					if(slowest != Long.MAX_VALUE) {
+						relayLog.deleteBefore(slowest);
+					}
+				}
+			} catch(IOException ioe) {
+				log.info("relay log write failed: " + ioe.getMessage());
+			}
+		}
+
+		/*
+		 * To send this data securely and with minimal overhead:
+		 * 1. Send a Request to PNDV telling it we have the data.
+		 * 2. PNDV replies with its own Request.
+		 * 3. We respond with CSVd data in the Response
+		 */
+		private void sendNotice() {
+			if(notifyURL == null || notifyURL.length() == 0) {
+				return;
+			}
+			if(httpClient == null) {
+				httpClient = new DefaultHttpClient();
+			}
+			try {
+				HttpResponse responseFromPNDV = httpClient.execute(new HttpGet(notifyURL));
+				// release the connection for the next notice
+				EntityUtils.consume(responseFromPNDV.getEntity());
+			} catch(IOException ioe) {
+				log.info(ioe.getMessage());
+			} catch(RuntimeException re) {
+				log.info(re.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "relay sequence: " + nextSequence.get() + ", consumers: " + offsets.size();
+	}
+}
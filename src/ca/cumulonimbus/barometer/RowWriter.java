@@ -0,0 +1,301 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write readings and conditions in the |-separated, ;-terminated web format
+ * straight to an output stream, without building a String per row.
+ *
+ * Rows go into one reused byte buffer that is flushed to the stream when it
+ * fills. The output is byte for byte what barometerReadingToWeb and
+ * currentConditionToWeb print through the servlet's default ISO-8859-1
+ * writer: nulls are written as "null", and characters outside ISO-8859-1 as
+ * '?'.
+ *
+ * Doubles and floats are written the way Double.toString and Float.toString
+ * write them. Common values take a fast path with no allocation: integers
+ * below 2^53 (times are these) and values between 10^-3 and 10^7 that have
+ * a short decimal form. Anything else falls back to toString.
+ */
+public class RowWriter {
+	private static final int BUFFER_SIZE = 8192;
+
+	// 10^0 .. 10^15, all exact as doubles
+	private static final double[] POW10 = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+			1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+	private static final int MAX_FLOAT_DECIMALS = 4;
+	private static final double TWO_TO_53 = 9007199254740992.0;
+
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	// scratch space for digits, written backwards
+	private final byte[] digits = new byte[20];
+
+	public RowWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	public void writeReading(BarometerReading br) throws IOException {
+		writeDouble(br.getLatitude());
+		writeByte('|');
+		writeDouble(br.getLongitude());
+		writeByte('|');
+		writeDouble(br.getReading());
+		writeByte('|');
+		writeDouble(br.getTime());
+		writeByte('|');
+		writeLong(br.getTimeZoneOffset());
+		writeByte('|');
+		writeString(br.getAndroidId());
+		writeByte('|');
+		writeString(br.getSharingPrivacy());
+		writeByte('|');
+		writeString(br.getClientKey());
+		writeByte('|');
+		writeFloat(br.getLocationAccuracy());
+		writeByte('|');
+		writeFloat(br.getReadingAccuracy());
+		writeByte(';');
+	}
+
+	public void writeCondition(CurrentCondition cc) throws IOException {
+		writeDouble(cc.getLatitude());
+		writeByte('|');
+		writeDouble(cc.getLongitude());
+		writeByte('|');
+		writeString(cc.getGeneral_condition());
+		writeByte('|');
+		writeDouble(cc.getTime());
+		writeByte('|');
+		writeLong(cc.getTzoffset());
+		writeByte('|');
+		writeString(cc.getWindy());
+		writeByte('|');
+		writeString(cc.getPrecipitation_type());
+		writeByte('|');
+		writeDouble(cc.getPrecipitation_amount());
+		writeByte('|');
+		writeString(cc.getThunderstorm_intensity());
+		writeByte('|');
+		writeString(cc.getCloud_type());
+		writeByte('|');
+		writeString(cc.getFog_thickness());
+		writeByte('|');
+		writeString(cc.getUser_id());
+		writeByte(';');
+	}
+
+	// Bytes that are already in the web format, like a cached tile
+	public void write(byte[] bytes) throws IOException {
+		write(bytes, 0, bytes.length);
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if(length > buffer.length - position) {
+			flushBuffer();
+			if(length > buffer.length) {
+				out.write(bytes, offset, length);
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+	}
+
+	public void writeString(String value) throws IOException {
+		if(value == null) {
+			write(NULL);
+			return;
+		}
+		int length = value.length();
+		for(int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if(c < 0x100) {
+				writeByte(c);
+			} else {
+				// ISO-8859-1 can't say it; a surrogate pair is one character
+				if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					i++;
+				}
+				writeByte('?');
+			}
+		}
+	}
+
+	public void writeLong(long value) throws IOException {
+		if(value == Long.MIN_VALUE) {
+			writeString(Long.toString(value));
+			return;
+		}
+		if(value < 0) {
+			writeByte('-');
+			value = -value;
+		}
+		int start = digits.length;
+		do {
+			digits[--start] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while(value != 0);
+		reserve(digits.length - start);
+		System.arraycopy(digits, start, buffer, position, digits.length - start);
+		position += digits.length - start;
+	}
+
+	public void writeDouble(double value) throws IOException {
+		if(value == 0) {
+			// keeps the sign of -0.0
+			writeString(Double.toString(value));
+			return;
+		}
+		double magnitude = Math.abs(value);
+		if(magnitude < TWO_TO_53 && magnitude == Math.rint(magnitude)) {
+			if(value < 0) {
+				writeByte('-');
+			}
+			writeIntegral((long) magnitude);
+			return;
+		}
+		if(magnitude >= 1e-3 && magnitude < 1e7) {
+			// Shortest decimal that reads back as the same double. We only go as far as
+			// the step between candidates is wider than the double's ulp, so at most one
+			// candidate per length can match, and scaled stays an exact integer.
+			double ulp = Math.ulp(magnitude);
+			for(int decimals = 1; decimals < POW10.length; decimals++) {
+				double product = magnitude * POW10[decimals];
+				if(1 / POW10[decimals] <= ulp || product >= TWO_TO_53) {
+					break;
+				}
+				long scaled = Math.round(product);
+				if(scaled / POW10[decimals] == magnitude) {
+					if(value < 0) {
+						writeByte('-');
+					}
+					writeFixed(scaled, decimals);
+					return;
+				}
+			}
+		}
+		writeString(Double.toString(value));
+	}
+
+	public void writeFloat(float value) throws IOException {
+		if(value == 0) {
+			writeString(Float.toString(value));
+			return;
+		}
+		float magnitude = Math.abs(value);
+		if(magnitude < 1e7f && magnitude == Math.rint(magnitude)) {
+			if(value < 0) {
+				writeByte('-');
+			}
+			writeLong((long) magnitude);
+			writeByte('.');
+			writeByte('0');
+			return;
+		}
+		if(magnitude >= 1e-3f && magnitude < 1e3f) {
+			// Below 10^3 a float's ulp is under 10^-4, so again one candidate per length
+			double ulp = Math.ulp(magnitude);
+			for(int decimals = 1; decimals <= MAX_FLOAT_DECIMALS; decimals++) {
+				long scaled = Math.round(magnitude * POW10[decimals]);
+				double candidate = scaled / POW10[decimals];
+				// Going through double rounds twice. That only goes wrong when the double
+				// lands exactly halfway between two floats, so leave those to Float.toString.
+				if((float) candidate == magnitude && candidate != magnitude + ulp / 2
+						&& candidate != magnitude - ulp / 2 && candidate != magnitude - ulp / 4) {
+					if(value < 0) {
+						writeByte('-');
+					}
+					writeFixed(scaled, decimals);
+					return;
+				}
+			}
+		}
+		writeString(Float.toString(value));
+	}
+
+	// An integer-valued double: n.0 below 10^7, d.dddEn from there up
+	private void writeIntegral(long value) throws IOException {
+		if(value < 10000000L) {
+			writeLong(value);
+			writeByte('.');
+			writeByte('0');
+			return;
+		}
+		int start = digits.length;
+		while(value != 0) {
+			digits[--start] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		int exponent = digits.length - start - 1;
+		int end = digits.length;
+		while(end - start > 1 && digits[end - 1] == '0') {
+			end--;
+		}
+		writeByte(digits[start]);
+		writeByte('.');
+		if(end - start == 1) {
+			writeByte('0');
+		}
+		for(int i = start + 1; i < end; i++) {
+			writeByte(digits[i]);
+		}
+		writeByte('E');
+		writeLong(exponent);
+	}
+
+	// scaled / 10^decimals with exactly that many decimals, trailing zeros removed
+	private void writeFixed(long scaled, int decimals) throws IOException {
+		long divisor = (long) POW10[decimals];
+		long whole = scaled / divisor;
+		long fraction = scaled % divisor;
+		while(decimals > 1 && fraction % 10 == 0) {
+			fraction /= 10;
+			decimals--;
+		}
+		writeLong(whole);
+		writeByte('.');
+		int start = digits.length;
+		for(int i = 0; i < decimals; i++) {
+			digits[--start] = (byte) ('0' + (fraction % 10));
+			fraction /= 10;
+		}
+		reserve(decimals);
+		System.arraycopy(digits, start, buffer, position, decimals);
+		position += decimals;
+	}
+
+	private void writeByte(int b) throws IOException {
+		if(position == buffer.length) {
+			flushBuffer();
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	private void reserve(int length) throws IOException {
+		if(buffer.length - position < length) {
+			flushBuffer();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if(position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		flushBuffer();
+		out.close();
+	}
+}
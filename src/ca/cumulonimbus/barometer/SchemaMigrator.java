@@ -0,0 +1,148 @@
+package ca.cumulonimbus.barometer;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Bring the database schema up to date, one numbered migration at a time.
+ *
+ * Applied versions are recorded in schema_version, so each migration runs
+ * once per database, in order, in its own transaction. A migration that
+ * fails is rolled back and stops the run there; it's tried again the next
+ * time the server starts. Add new migrations to the end of MIGRATIONS and
+ * never change one that has shipped.
+ */
+public class SchemaMigrator {
+	private static String logName = "ca.cumulonimbus.barometer.SchemaMigrator";
+	private static Logger log = Logger.getLogger(logName);
+
+	/**
+	 * One step of the schema's history.
+	 */
+	abstract static class Migration {
+		final int version;
+		final String description;
+
+		Migration(int version, String description) {
+			this.version = version;
+			this.description = description;
+		}
+
+		abstract void apply(Statement stmt) throws SQLException;
+	}
+
+	// Columns moving from numeric to double precision, and the time column moving to bigint
+	private static final String[][] NUMERIC_COLUMNS = {
+		{"readings", "daterecorded", "latitude", "longitude", "reading", "location_accuracy", "reading_accuracy"},
+		{"archive", "daterecorded", "latitude", "longitude", "reading", "location_accuracy", "reading_accuracy"},
+		{"currentcondition", "time", "latitude", "longitude", "location_accuracy", "precipitation_amount", "thunderstorm_intensity"},
+		{"currentconditionarchive", "time", "latitude", "longitude", "location_accuracy", "precipitation_amount", "thunderstorm_intensity"},
+	};
+
+	static final Migration[] MIGRATIONS = {
+		new Migration(1, "unique user keys on Readings and CurrentCondition for the upserts") {
+			void apply(Statement stmt) throws SQLException {
+				// Older duplicate rows for a user are dropped, keeping the most recently inserted one
+				stmt.execute("DELETE FROM Readings a USING Readings b WHERE a.text = b.text AND a.id < b.id");
+				stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS readings_text_key ON Readings (text)");
+				stmt.execute("DELETE FROM CurrentCondition a USING CurrentCondition b WHERE a.user_id = b.user_id AND a.id < b.id");
+				stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS currentcondition_user_id_key ON CurrentCondition (user_id)");
+			}
+		},
+		new Migration(2, "double precision coordinates and pressures, bigint epoch millis") {
+			void apply(Statement stmt) throws SQLException {
+				for(String[] columns : NUMERIC_COLUMNS) {
+					String table = columns[0];
+					StringBuilder alter = new StringBuilder("ALTER TABLE " + table);
+					// A partitioned table's time column is its partition key and can't change type
+					if(!isPartitioned(stmt, table)) {
+						alter.append(" ALTER COLUMN " + columns[1] + " TYPE bigint USING round(" + columns[1] + ")::bigint,");
+					} else {
+						log.info(table + " is already partitioned; " + columns[1] + " keeps its type");
+					}
+					for(int i = 2; i < columns.length; i++) {
+						alter.append(" ALTER COLUMN " + columns[i] + " TYPE double precision");
+						alter.append(i < columns.length - 1 ? "," : "");
+					}
+					stmt.execute(alter.toString());
+				}
+			}
+		},
+		new Migration(3, "indexes for the per-user, time range and map queries") {
+			void apply(Statement stmt) throws SQLException {
+				stmt.execute("CREATE INDEX IF NOT EXISTS archive_text_daterecorded_idx ON archive (text, daterecorded)");
+				stmt.execute("CREATE INDEX IF NOT EXISTS archive_daterecorded_idx ON archive (daterecorded)");
+				stmt.execute("CREATE INDEX IF NOT EXISTS readings_daterecorded_idx ON Readings (daterecorded)");
+				stmt.execute("CREATE INDEX IF NOT EXISTS readings_location_idx ON Readings USING gist (point(longitude, latitude))");
+				stmt.execute("CREATE INDEX IF NOT EXISTS currentconditionarchive_user_id_time_idx ON CurrentConditionArchive (user_id, time)");
+				stmt.execute("CREATE INDEX IF NOT EXISTS currentconditionarchive_time_idx ON CurrentConditionArchive (time)");
+				stmt.execute("CREATE INDEX IF NOT EXISTS currentcondition_location_idx ON CurrentCondition USING gist (point(longitude, latitude))");
+			}
+		},
+		new Migration(4, "(daterecorded, id) indexes for keyset paging") {
+			void apply(Statement stmt) throws SQLException {
+				// These cover everything the daterecorded-only indexes did
+				stmt.execute("CREATE INDEX IF NOT EXISTS archive_daterecorded_id_idx ON archive (daterecorded, id)");
+				stmt.execute("DROP INDEX IF EXISTS archive_daterecorded_idx");
+				stmt.execute("CREATE INDEX IF NOT EXISTS readings_daterecorded_id_idx ON Readings (daterecorded, id)");
+				stmt.execute("DROP INDEX IF EXISTS readings_daterecorded_idx");
+			}
+		},
+	};
+
+	private final ConnectionPool pool;
+
+	public SchemaMigrator(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Apply every migration this database hasn't had yet.
+	 * @return the schema version the database is now at
+	 */
+	public int migrate() {
+		int current = 0;
+		Connection db = null;
+		Statement stmt = null;
+		try {
+			db = pool.getConnection();
+			stmt = db.createStatement();
+			stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version int PRIMARY KEY, description varchar(200), applied timestamptz DEFAULT now())");
+			ResultSet rs = stmt.executeQuery("SELECT coalesce(max(version), 0) FROM schema_version");
+			rs.next();
+			current = rs.getInt(1);
+
+			db.setAutoCommit(false);
+			for(Migration migration : MIGRATIONS) {
+				if(migration.version <= current) {
+					continue;
+				}
+				try {
+					migration.apply(stmt);
+					stmt.execute("INSERT INTO schema_version (version, description) VALUES (" + migration.version + ", '" + migration.description + "')");
+					db.commit();
+					current = migration.version;
+					log.info("schema now at version " + current + ": " + migration.description);
+				} catch(SQLException e) {
+					db.rollback();
+					log.info("schema migration " + migration.version + " failed: " + e.getMessage());
+					break;
+				}
+			}
+		} catch(SQLException e) {
+			log.info("schema migration failed: " + e.getMessage());
+		} finally {
+			DatabaseHelper.closeStatement(stmt);
+			pool.release(db);
+		}
+		return current;
+	}
+
+	private static boolean isPartitioned(Statement stmt, String table) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT relkind FROM pg_class WHERE oid = to_regclass('" + table + "')");
+		return rs.next() && "p".equals(rs.getString(1));
+	}
+}
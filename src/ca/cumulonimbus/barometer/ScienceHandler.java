@@ -1,7 +1,6 @@
 package ca.cumulonimbus.barometer;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 
 public class ScienceHandler {
@@ -17,6 +16,44 @@ public class ScienceHandler {
         }
     }
     
+    /**
+     * The two earliest and two latest readings, in time order, found in one pass
+     * rather than by sorting the list. Needs at least four readings.
+     */
+    private static BarometerReading[] earliestAndLatest(ArrayList<BarometerReading> recents) {
+    	TimeComparator byTime = new TimeComparator();
+    	BarometerReading first = null;
+    	BarometerReading second = null;
+    	BarometerReading secondlast = null;
+    	BarometerReading last = null;
+    	for(BarometerReading br : recents) {
+    		if(first == null || byTime.compare(br, first) < 0) {
+    			second = first;
+    			first = br;
+    		} else if(second == null || byTime.compare(br, second) < 0) {
+    			second = br;
+    		}
+    		if(last == null || byTime.compare(br, last) > 0) {
+    			secondlast = last;
+    			last = br;
+    		} else if(secondlast == null || byTime.compare(br, secondlast) > 0) {
+    			secondlast = br;
+    		}
+    	}
+    	return new BarometerReading[] {first, second, secondlast, last};
+    }
+    
+    // Name a tendency slope, in hPa per hour
+    public static String trendFromSlope(double slope, double steadySlope) {
+    	if(slope > steadySlope) {
+    		return "rising";
+    	} else if(slope < -steadySlope) {
+    		return "falling";
+    	} else {
+    		return "steady";
+    	}
+    }
+    
     public static double slopeOfReadings(BarometerReading first, BarometerReading second) {
     	return ((second.getReading() - first.getReading()) / (second.getTime() -  first.getTime())); 
     }
@@ -33,14 +70,13 @@ public class ScienceHandler {
     	if(recents.size() < 4) {
     		return 0;
     	}
-    	// sort recents by time.
-    	Collections.sort(recents, new TimeComparator());
     	// compare the first and last, 
     	// and maybe the ones in the middle
-    	BarometerReading first = recents.get(0);
-    	BarometerReading second = recents.get(1);
-    	BarometerReading last = recents.get(recents.size() - 1);
-    	BarometerReading secondlast = recents.get(recents.size() - 2);
+    	BarometerReading[] ends = earliestAndLatest(recents);
+    	BarometerReading first = ends[0];
+    	BarometerReading second = ends[1];
+    	BarometerReading secondlast = ends[2];
+    	BarometerReading last = ends[3];
     	double widerSlope = slopeOfReadings(first, last);
     	double innerSlope = slopeOfReadings(second, secondlast);
     	if(widerSlope > 0) {
@@ -83,14 +119,13 @@ public class ScienceHandler {
     	if(recents.size() < 4) {
     		return "unknown";
     	}
-    	// sort recents by time.
-    	Collections.sort(recents, new TimeComparator());
     	// compare the first and last, 
     	// and maybe the ones in the middle
-    	BarometerReading first = recents.get(0);
-    	BarometerReading second = recents.get(1);
-    	BarometerReading last = recents.get(recents.size() - 1);
-    	BarometerReading secondlast = recents.get(recents.size() - 2);
+    	BarometerReading[] ends = earliestAndLatest(recents);
+    	BarometerReading first = ends[0];
+    	BarometerReading second = ends[1];
+    	BarometerReading secondlast = ends[2];
+    	BarometerReading last = ends[3];
     	double widerSlope = slopeOfReadings(first, last);
     	double innerSlope = slopeOfReadings(second, secondlast);
     	if(widerSlope > 0) {
@@ -121,4 +156,124 @@ public class ScienceHandler {
     		return "steady";
     	}
     }
+
+    // Android's SensorManager.SENSOR_STATUS_UNRELIABLE; readings reported at this accuracy are left out
+    public static final float SENSOR_STATUS_UNRELIABLE = 0;
+    // Readings further than this many standard deviations from the first fit are dropped
+    public static final double OUTLIER_DEVIATIONS = 3;
+    
+    private static final double HOUR = 1000 * 60 * 60;
+    
+    /**
+     * Robust least-squares slope, in hPa per hour, over the first count entries of
+     * primitive arrays. Readings whose accuracy is at or below minimumAccuracy are
+     * skipped. The line is fitted once, readings further than OUTLIER_DEVIATIONS
+     * standard deviations from it are dropped, and the line is fitted again.
+     * 
+     * Three passes over the arrays and nothing allocated, so it's cheap to run
+     * over thousands of readings in a busy cell.
+     * @param times ms
+     * @param pressures hPa
+     * @param accuracies sensor accuracy per reading, or null to take every reading
+     * @param count
+     * @param minimumAccuracy
+     * @return the slope, or NaN if fewer than two readings at different times are left
+     */
+    public static double leastSquaresSlope(double[] times, double[] pressures, float[] accuracies, int count, float minimumAccuracy) {
+    	if(count < 2) {
+    		return Double.NaN;
+    	}
+    	// time in hours from the first reading keeps the sums well conditioned
+    	double reference = times[0];
+    	
+    	// First fit
+    	double n = 0, st = 0, sp = 0, stt = 0, stp = 0;
+    	for(int i = 0; i < count; i++) {
+    		if(accuracies != null && accuracies[i] <= minimumAccuracy) {
+    			continue;
+    		}
+    		double t = (times[i] - reference) / HOUR;
+    		double p = pressures[i];
+    		n++;
+    		st += t;
+    		sp += p;
+    		stt += t * t;
+    		stp += t * p;
+    	}
+    	double sxx = stt - st * st / n;
+    	if(n < 2 || sxx <= 0) {
+    		return Double.NaN;
+    	}
+    	double slope = (stp - st * sp / n) / sxx;
+    	double intercept = (sp - slope * st) / n;
+    	
+    	// Spread of the readings around it
+    	double squares = 0;
+    	for(int i = 0; i < count; i++) {
+    		if(accuracies != null && accuracies[i] <= minimumAccuracy) {
+    			continue;
+    		}
+    		double residual = pressures[i] - (intercept + slope * (times[i] - reference) / HOUR);
+    		squares += residual * residual;
+    	}
+    	double limit = OUTLIER_DEVIATIONS * Math.sqrt(squares / n);
+    	if(limit == 0) {
+    		// a perfect line; nothing to drop
+    		return slope;
+    	}
+    	
+    	// Fit again without the outliers
+    	double n2 = 0, st2 = 0, sp2 = 0, stt2 = 0, stp2 = 0;
+    	for(int i = 0; i < count; i++) {
+    		if(accuracies != null && accuracies[i] <= minimumAccuracy) {
+    			continue;
+    		}
+    		double t = (times[i] - reference) / HOUR;
+    		double p = pressures[i];
+    		if(Math.abs(p - (intercept + slope * t)) > limit) {
+    			continue;
+    		}
+    		n2++;
+    		st2 += t;
+    		sp2 += p;
+    		stt2 += t * t;
+    		stp2 += t * p;
+    	}
+    	double sxx2 = stt2 - st2 * st2 / n2;
+    	if(n2 < 2 || sxx2 <= 0) {
+    		return slope;
+    	}
+    	return (stp2 - st2 * sp2 / n2) / sxx2;
+    }
+    
+    /**
+     * Tendency of one phone's recent readings by least squares rather than by the
+     * endpoints: rising, falling, steady or unknown.
+     * @param recents readings from a single user
+     * @param steadySlope hPa per hour below which pressure is steady
+     */
+    public static String findTendencyLeastSquares(ArrayList<BarometerReading> recents, double steadySlope) {
+    	if(recents == null || recents.size() < 4) {
+    		return "unknown";
+    	}
+    	int count = recents.size();
+    	double[] times = new double[count];
+    	double[] pressures = new double[count];
+    	float[] accuracies = new float[count];
+    	for(int i = 0; i < count; i++) {
+    		BarometerReading br = recents.get(i);
+    		times[i] = br.getTime();
+    		pressures[i] = br.getReading();
+    		accuracies[i] = br.getReadingAccuracy();
+    	}
+    	double slope = leastSquaresSlope(times, pressures, accuracies, count, SENSOR_STATUS_UNRELIABLE);
+    	if(Double.isNaN(slope)) {
+    		// Older clients don't report accuracy; use everything rather than nothing
+    		slope = leastSquaresSlope(times, pressures, null, count, SENSOR_STATUS_UNRELIABLE);
+    	}
+    	if(Double.isNaN(slope)) {
+    		return "unknown";
+    	}
+    	return trendFromSlope(slope, steadySlope);
+    }
 }
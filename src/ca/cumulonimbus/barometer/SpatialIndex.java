@@ -0,0 +1,201 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keep the latest item (reading or condition) for each user in memory, filed
+ * in a fixed latitude/longitude grid, so map queries for a region only look
+ * at the grid cells that overlap it.
+ *
+ * Writes are serialized; queries run without locking against the
+ * concurrent maps and hand back copies, so callers are free to modify what
+ * they get.
+ *
+ * @param <T> BarometerReading or CurrentCondition
+ */
+public class SpatialIndex<T> {
+
+	/**
+	 * Tells the index how to read an item.
+	 */
+	public interface Locator<T> {
+		String getId(T item);
+		double getLatitude(T item);
+		double getLongitude(T item);
+		double getTime(T item);
+		T copy(T item);
+	}
+
+	// Grid cell size. Half a degree is about 55km north-south.
+	private static final double CELL_DEGREES = 0.5;
+	private static final int ROWS = (int) Math.ceil(180 / CELL_DEGREES);
+	private static final int COLUMNS = (int) Math.ceil(360 / CELL_DEGREES);
+
+	// Drop expired items every so many writes
+	private static final int PRUNE_EVERY = 1000;
+
+	private final Locator<T> locator;
+	private final long retention;
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, T>> cells = new ConcurrentHashMap<Integer, ConcurrentHashMap<String, T>>();
+	private final ConcurrentHashMap<String, T> latest = new ConcurrentHashMap<String, T>();
+	private int writesSincePrune = 0;
+
+	/**
+	 * @param locator
+	 * @param retention how long, in ms, an item stays in the index after its time
+	 */
+	public SpatialIndex(Locator<T> locator, long retention) {
+		this.locator = locator;
+		this.retention = retention;
+	}
+
+	/**
+	 * Record an item as its user's latest, unless we already hold a newer one.
+	 * @param item
+	 */
+	public synchronized void put(T item) {
+		if(item == null) {
+			return;
+		}
+		String id = locator.getId(item);
+		if(id == null) {
+			return;
+		}
+		T previous = latest.get(id);
+		if(previous != null) {
+			if(locator.getTime(previous) > locator.getTime(item)) {
+				return;
+			}
+			removeFromCell(id, previous);
+		}
+		T stored = locator.copy(item);
+		latest.put(id, stored);
+		int key = cellKey(locator.getLatitude(stored), locator.getLongitude(stored));
+		ConcurrentHashMap<String, T> cell = cells.get(key);
+		if(cell == null) {
+			cell = new ConcurrentHashMap<String, T>();
+			cells.put(key, cell);
+		}
+		cell.put(id, stored);
+
+		if(++writesSincePrune >= PRUNE_EVERY) {
+			writesSincePrune = 0;
+			prune(System.currentTimeMillis() - retention);
+		}
+	}
+
+	public synchronized void remove(String id) {
+		T previous = latest.remove(id);
+		if(previous != null) {
+			removeFromCell(id, previous);
+		}
+	}
+
+	// Drop every item older than cutoff
+	public synchronized void prune(double cutoff) {
+		for(Map.Entry<String, T> entry : latest.entrySet()) {
+			if(locator.getTime(entry.getValue()) < cutoff) {
+				latest.remove(entry.getKey());
+				removeFromCell(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void removeFromCell(String id, T item) {
+		int key = cellKey(locator.getLatitude(item), locator.getLongitude(item));
+		ConcurrentHashMap<String, T> cell = cells.get(key);
+		if(cell != null) {
+			cell.remove(id);
+			if(cell.isEmpty()) {
+				cells.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Find items strictly inside the region and newer than sinceWhen, the same
+	 * way the SQL region queries compare.
+	 * @param lat1 min latitude
+	 * @param lat2 max latitude
+	 * @param lon1 min longitude
+	 * @param lon2 max longitude
+	 * @param sinceWhen
+	 * @param max stop after this many
+	 * @return copies of the matching items
+	 */
+	public ArrayList<T> query(double lat1, double lat2, double lon1, double lon2, double sinceWhen, int max) {
+		return query(lat1, lat2, lon1, lon2, sinceWhen, max, false);
+	}
+
+	/**
+	 * Like query, but with the minimum latitude and longitude included, so
+	 * tiles that share an edge don't both miss what lies on it.
+	 */
+	public ArrayList<T> queryTile(double lat1, double lat2, double lon1, double lon2, double sinceWhen, int max) {
+		return query(lat1, lat2, lon1, lon2, sinceWhen, max, true);
+	}
+
+	private ArrayList<T> query(double lat1, double lat2, double lon1, double lon2, double sinceWhen, int max, boolean includeMin) {
+		ArrayList<T> results = new ArrayList<T>();
+		int minRow = row(lat1);
+		int maxRow = row(lat2);
+		int minCol = column(lon1);
+		int maxCol = column(lon2);
+		long cellsInRegion = (long) (maxRow - minRow + 1) * (maxCol - minCol + 1);
+
+		if(cellsInRegion > cells.size()) {
+			// Large region: cheaper to walk the occupied cells
+			for(ConcurrentHashMap<String, T> cell : cells.values()) {
+				if(collect(cell, lat1, lat2, lon1, lon2, sinceWhen, max, includeMin, results)) {
+					return results;
+				}
+			}
+			return results;
+		}
+		for(int row = minRow; row <= maxRow; row++) {
+			for(int col = minCol; col <= maxCol; col++) {
+				ConcurrentHashMap<String, T> cell = cells.get(row * COLUMNS + col);
+				if(cell != null && collect(cell, lat1, lat2, lon1, lon2, sinceWhen, max, includeMin, results)) {
+					return results;
+				}
+			}
+		}
+		return results;
+	}
+
+	// Add matches from one cell. Returns true once max is reached.
+	private boolean collect(ConcurrentHashMap<String, T> cell, double lat1, double lat2, double lon1, double lon2, double sinceWhen, int max, boolean includeMin, ArrayList<T> results) {
+		for(T item : cell.values()) {
+			double latitude = locator.getLatitude(item);
+			double longitude = locator.getLongitude(item);
+			boolean aboveMin = includeMin ? (latitude >= lat1 && longitude >= lon1) : (latitude > lat1 && longitude > lon1);
+			if(aboveMin && latitude < lat2 && longitude < lon2 && locator.getTime(item) > sinceWhen) {
+				results.add(locator.copy(item));
+				if(results.size() >= max) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return latest.size();
+	}
+
+	private static int row(double latitude) {
+		int row = (int) Math.floor((latitude + 90) / CELL_DEGREES);
+		return Math.max(0, Math.min(ROWS - 1, row));
+	}
+
+	private static int column(double longitude) {
+		int col = (int) Math.floor((longitude + 180) / CELL_DEGREES);
+		return Math.max(0, Math.min(COLUMNS - 1, col));
+	}
+
+	private static int cellKey(double latitude, double longitude) {
+		return row(latitude) * COLUMNS + column(longitude);
+	}
+}
@@ -0,0 +1,530 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decode a reading submitted as an application/x-www-form-urlencoded body,
+ * straight from the request's input stream.
+ *
+ * This is the servlet's busiest path, so the decoder avoids what
+ * getParameterMap costs: a String[] and a String for every key and value.
+ * The body is read into a buffer the decoder keeps, keys are matched as
+ * bytes, and numbers are parsed where they lie. Only the three string
+ * fields become Strings. A decoder holds state between calls, so keep one
+ * per thread.
+ *
+ * Bad input doesn't throw. decode returns a Status, and getErrorField says
+ * which field was at fault. A body that turns out to be some other kind of
+ * request comes back NOT_A_READING; getParameterMap then gives its
+ * parameters, since the body can't be read a second time.
+ *
+ * A batch body carries one record per line, each urlencoded like a single
+ * submission. readBatch reads it, then nextRecord and decodeRecord work
+ * through the lines with the same buffers.
+ */
+public class SubmissionDecoder {
+
+	public enum Status {
+		OK,
+		// The body is another kind of request, like a download or a condition
+		NOT_A_READING,
+		TOO_LARGE,
+		MALFORMED,
+		MISSING_FIELD,
+		BAD_NUMBER,
+		OUT_OF_RANGE
+	}
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// Largest body we'll take; a reading is a few hundred bytes
+	private static final int MAX_BODY = 16 * 1024;
+	// Largest batch body; a few thousand readings
+	private static final int MAX_BATCH_BODY = 1024 * 1024;
+	private static final double MIN_PRESSURE = 100;
+	private static final double MAX_PRESSURE = 1200;
+
+	// Reading fields, in the order of the values below
+	private static final int LATITUDE = 0;
+	private static final int LONGITUDE = 1;
+	private static final int TIME = 2;
+	private static final int TZOFFSET = 3;
+	private static final int READING = 4;
+	private static final int TEXT = 5;
+	private static final int SHARE = 6;
+	private static final int CLIENT_KEY = 7;
+	private static final int LOCATION_ACCURACY = 8;
+	private static final int READING_ACCURACY = 9;
+	private static final byte[][] FIELDS = bytes("latitude", "longitude", "time", "tzoffset", "reading",
+			"text", "share", "client_key", "location_accuracy", "reading_accuracy");
+
+	// Keys that make the body some other request
+	private static final byte[][] OTHER_REQUESTS = bytes("download", "statistics", "export", "pndv", "current_condition");
+
+	// 10^0 .. 10^22, all exact as doubles
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	// 10^0 .. 10^10, all exact as floats
+	private static final float[] FLOAT_POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+	private byte[] body = new byte[1024];
+	private int length;
+	// The record being decoded: the whole body, or one line of a batch
+	private int recordStart;
+	private int recordEnd;
+	private int nextLine;
+	private int lineNumber;
+	private Charset charset = ISO_8859_1;
+	// scratch space for percent-decoding one value
+	private byte[] decoded = new byte[256];
+	private char[] chars = new char[256];
+
+	// Where each field's value starts and ends in the body; -1 if it wasn't sent
+	private final int[] valueStart = new int[FIELDS.length];
+	private final int[] valueEnd = new int[FIELDS.length];
+
+	private double latitude;
+	private double longitude;
+	private double time;
+	private int timeZoneOffset;
+	private double reading;
+	private float locationAccuracy;
+	private float readingAccuracy;
+	private int errorField = -1;
+
+	/**
+	 * Read and decode one body.
+	 * @param in the request's input stream
+	 * @param characterEncoding the request's character encoding, or null for ISO-8859-1
+	 */
+	public Status decode(InputStream in, String characterEncoding) throws IOException {
+		Status status = read(in, characterEncoding, MAX_BODY);
+		if(status != Status.OK) {
+			return status;
+		}
+		recordStart = 0;
+		recordEnd = length;
+		return decodeBody();
+	}
+
+	/**
+	 * Read a batch body: one urlencoded record per line, each a reading or a
+	 * condition. Step through the records with nextRecord.
+	 * @param in the request's input stream
+	 * @param characterEncoding the request's character encoding, or null for ISO-8859-1
+	 */
+	public Status readBatch(InputStream in, String characterEncoding) throws IOException {
+		recordStart = 0;
+		recordEnd = 0;
+		nextLine = 0;
+		return read(in, characterEncoding, MAX_BATCH_BODY);
+	}
+
+	/**
+	 * Move on to the next record of a batch, skipping blank lines.
+	 * @return false when there are no more
+	 */
+	public boolean nextRecord() {
+		while(nextLine < length) {
+			int end = indexOf('\n', nextLine, length);
+			recordStart = nextLine;
+			recordEnd = end;
+			lineNumber++;
+			nextLine = end + 1;
+			if(end > recordStart && body[end - 1] == '\r') {
+				recordEnd = end - 1;
+			}
+			if(recordEnd > recordStart) {
+				return true;
+			}
+		}
+		recordStart = length;
+		recordEnd = length;
+		return false;
+	}
+
+	/**
+	 * Decode the current record of a batch as a reading. A condition comes back
+	 * NOT_A_READING; getParameterMap then gives its fields.
+	 */
+	public Status decodeRecord() {
+		errorField = -1;
+		return decodeBody();
+	}
+
+	// Line of the batch the current record is on, from 1
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	private Status read(InputStream in, String characterEncoding, int maxBody) throws IOException {
+		errorField = -1;
+		lineNumber = 0;
+		charset = ISO_8859_1;
+		if(characterEncoding != null) {
+			try {
+				charset = Charset.forName(characterEncoding);
+			} catch(IllegalArgumentException iae) {
+				return Status.MALFORMED;
+			}
+		}
+		length = 0;
+		int read;
+		while((read = in.read(body, length, body.length - length)) > 0) {
+			length += read;
+			if(length == body.length) {
+				if(body.length >= maxBody) {
+					return Status.TOO_LARGE;
+				}
+				body = Arrays.copyOf(body, Math.min(maxBody, body.length * 2));
+			}
+		}
+		// the buffer may still be a batch's size
+		return (length > maxBody) ? Status.TOO_LARGE : Status.OK;
+	}
+
+	private Status decodeBody() {
+		Arrays.fill(valueStart, -1);
+		boolean otherRequest = false;
+		boolean anyField = false;
+		int position = recordStart;
+		while(position < recordEnd) {
+			int pairEnd = indexOf('&', position, recordEnd);
+			int equals = indexOf('=', position, pairEnd);
+			int valueFrom = (equals < pairEnd) ? equals + 1 : pairEnd;
+			int field = match(FIELDS, position, equals);
+			if(field >= 0) {
+				anyField = true;
+				if(valueStart[field] < 0) {
+					// the first value of a field is the one getParameter gives
+					valueStart[field] = valueFrom;
+					valueEnd[field] = pairEnd;
+				}
+			} else if(match(OTHER_REQUESTS, position, equals) >= 0) {
+				otherRequest = true;
+			}
+			position = pairEnd + 1;
+		}
+		if(otherRequest || !anyField) {
+			return Status.NOT_A_READING;
+		}
+		for(int field = 0; field < FIELDS.length; field++) {
+			if(valueStart[field] < 0) {
+				errorField = field;
+				return Status.MISSING_FIELD;
+			}
+		}
+
+		if(!parseDouble(LATITUDE) || !parseDouble(LONGITUDE) || !parseDouble(TIME) || !parseDouble(READING)
+				|| !parseFloat(LOCATION_ACCURACY) || !parseFloat(READING_ACCURACY)) {
+			return Status.BAD_NUMBER;
+		}
+		long offset = parseLong(TZOFFSET);
+		if(errorField >= 0) {
+			return Status.BAD_NUMBER;
+		}
+		if(offset < Integer.MIN_VALUE || offset > Integer.MAX_VALUE) {
+			errorField = TZOFFSET;
+			return Status.OUT_OF_RANGE;
+		}
+		timeZoneOffset = (int) offset;
+
+		if(latitude < -90 || latitude > 90) {
+			errorField = LATITUDE;
+			return Status.OUT_OF_RANGE;
+		}
+		if(longitude < -180 || longitude > 180) {
+			errorField = LONGITUDE;
+			return Status.OUT_OF_RANGE;
+		}
+		if(reading < MIN_PRESSURE || reading > MAX_PRESSURE) {
+			errorField = READING;
+			return Status.OUT_OF_RANGE;
+		}
+		if(time < 0 || time > System.currentTimeMillis() + BarometerReading.MAX_CLOCK_AHEAD) {
+			errorField = TIME;
+			return Status.OUT_OF_RANGE;
+		}
+		return Status.OK;
+	}
+
+	/**
+	 * The decoded reading. Only call this after decode returned OK.
+	 */
+	public BarometerReading toReading() {
+		BarometerReading br = new BarometerReading();
+		br.setLatitude(latitude);
+		br.setLongitude(longitude);
+		br.setTime(time);
+		br.setTimeZoneOffset(timeZoneOffset);
+		br.setReading(reading);
+		br.setAndroidId(string(TEXT));
+		br.setSharingPrivacy(string(SHARE));
+		br.setClientKey(string(CLIENT_KEY));
+		br.setLocationAccuracy(locationAccuracy);
+		br.setReadingAccuracy(readingAccuracy);
+		return br;
+	}
+
+	// The field that was missing, malformed or out of range, or null
+	public String getErrorField() {
+		return (errorField < 0) ? null : new String(FIELDS[errorField], ISO_8859_1);
+	}
+
+	/**
+	 * Every parameter in the last body or batch record, the way getParameterMap
+	 * would have given them. For requests that turned out not to be readings.
+	 */
+	public Map<String, String[]> getParameterMap() {
+		HashMap<String, String[]> params = new HashMap<String, String[]>();
+		int position = recordStart;
+		while(position < recordEnd) {
+			int pairEnd = indexOf('&', position, recordEnd);
+			int equals = indexOf('=', position, pairEnd);
+			if(pairEnd > position) {
+				String key = decodeString(position, equals);
+				String value = (equals < pairEnd) ? decodeString(equals + 1, pairEnd) : "";
+				String[] values = params.get(key);
+				if(values == null) {
+					values = new String[] {value};
+				} else {
+					values = Arrays.copyOf(values, values.length + 1);
+					values[values.length - 1] = value;
+				}
+				params.put(key, values);
+			}
+			position = pairEnd + 1;
+		}
+		return params;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(body[i] == c) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	// Which of the keys body[from, to) is, or -1. Keys are plain ASCII, so no decoding.
+	private int match(byte[][] keys, int from, int to) {
+		for(int k = 0; k < keys.length; k++) {
+			byte[] key = keys[k];
+			if(key.length != to - from) {
+				continue;
+			}
+			int i = 0;
+			while(i < key.length && body[from + i] == key[i]) {
+				i++;
+			}
+			if(i == key.length) {
+				return k;
+			}
+		}
+		return -1;
+	}
+
+	private boolean parseDouble(int field) {
+		double value = parseDecimal(field, POW10.length - 1, 15);
+		if(Double.isNaN(value)) {
+			return false;
+		}
+		switch(field) {
+		case LATITUDE: latitude = value; break;
+		case LONGITUDE: longitude = value; break;
+		case TIME: time = value; break;
+		default: reading = value; break;
+		}
+		return true;
+	}
+
+	private boolean parseFloat(int field) {
+		// A float only takes the fast path when both parts are exact as floats, so it's rounded once
+		double value = parseDecimal(field, FLOAT_POW10.length - 1, 7);
+		if(Double.isNaN(value)) {
+			return false;
+		}
+		if(field == LOCATION_ACCURACY) {
+			locationAccuracy = (float) value;
+		} else {
+			readingAccuracy = (float) value;
+		}
+		return true;
+	}
+
+	/**
+	 * A decimal number in place: [-]digits[.digits][e[-]digits]. When the digits
+	 * and the power of ten are both exact, one multiply or divide gives the
+	 * correctly rounded value; anything else goes to Double.parseDouble or
+	 * Float.parseFloat. NaN, with errorField set, if it isn't a finite number.
+	 * A float's value comes back as a double that converts to the right float.
+	 */
+	private double parseDecimal(int field, int maxPower, int maxDigits) {
+		int i = valueStart[field];
+		int end = valueEnd[field];
+		boolean negative = false;
+		if(i < end && body[i] == '-') {
+			negative = true;
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		boolean exact = true;
+		for(; i < end; i++) {
+			byte b = body[i];
+			if(b >= '0' && b <= '9') {
+				seenDigit = true;
+				if(mantissa == 0 && b == '0') {
+					// leading zeros don't count towards precision
+				} else if(digits < maxDigits) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+				} else {
+					exact = false;
+					break;
+				}
+				if(seenPoint) {
+					exponent--;
+				}
+			} else if(b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+		}
+		if(i < end && (body[i] == 'e' || body[i] == 'E') && exact && seenDigit) {
+			i++;
+			boolean negativeExponent = false;
+			if(i < end && (body[i] == '-' || body[i] == '+')) {
+				negativeExponent = body[i] == '-';
+				i++;
+			}
+			int written = 0;
+			int start = i;
+			for(; i < end && body[i] >= '0' && body[i] <= '9' && i - start < 4; i++) {
+				written = written * 10 + (body[i] - '0');
+			}
+			if(i == start) {
+				errorField = field;
+				return Double.NaN;
+			}
+			exponent += negativeExponent ? -written : written;
+		}
+		if(exact && i == end && seenDigit && Math.abs(exponent) <= maxPower) {
+			double value;
+			if(maxDigits <= 7) {
+				float f = (exponent < 0) ? (float) mantissa / FLOAT_POW10[-exponent] : (float) mantissa * FLOAT_POW10[exponent];
+				value = f;
+			} else {
+				value = (exponent < 0) ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+			}
+			if(Double.isInfinite(value)) {
+				errorField = field;
+				return Double.NaN;
+			}
+			return negative ? -value : value;
+		}
+
+		// Too many digits, or escaped characters: leave it to the library
+		String text = decodeString(valueStart[field], end).trim();
+		try {
+			double value = (maxDigits <= 7) ? Float.parseFloat(text) : Double.parseDouble(text);
+			if(Double.isNaN(value) || Double.isInfinite(value)) {
+				errorField = field;
+				return Double.NaN;
+			}
+			return value;
+		} catch(NumberFormatException nfe) {
+			errorField = field;
+			return Double.NaN;
+		}
+	}
+
+	// A whole number, as Integer.parseInt takes it
+	private long parseLong(int field) {
+		int i = valueStart[field];
+		int end = valueEnd[field];
+		boolean negative = false;
+		if(i < end && (body[i] == '-' || body[i] == '+')) {
+			negative = body[i] == '-';
+			i++;
+		}
+		if(i == end || end - i > 11) {
+			errorField = field;
+			return 0;
+		}
+		long value = 0;
+		for(; i < end; i++) {
+			if(body[i] < '0' || body[i] > '9') {
+				errorField = field;
+				return 0;
+			}
+			value = value * 10 + (body[i] - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	private String string(int field) {
+		return decodeString(valueStart[field], valueEnd[field]);
+	}
+
+	// body[from, to) with + and %XX decoded, in the request's charset
+	private String decodeString(int from, int to) {
+		if(decoded.length < to - from) {
+			decoded = new byte[to - from];
+			chars = new char[to - from];
+		}
+		int n = 0;
+		boolean ascii = true;
+		for(int i = from; i < to; i++) {
+			byte b = body[i];
+			if(b == '+') {
+				b = ' ';
+			} else if(b == '%' && hex(i + 1, to) >= 0 && hex(i + 2, to) >= 0) {
+				b = (byte) (hex(i + 1, to) * 16 + hex(i + 2, to));
+				i += 2;
+			}
+			ascii &= b >= 0;
+			decoded[n++] = b;
+		}
+		if(!ascii && !charset.equals(ISO_8859_1)) {
+			return new String(decoded, 0, n, charset);
+		}
+		for(int i = 0; i < n; i++) {
+			chars[i] = (char) (decoded[i] & 0xff);
+		}
+		return new String(chars, 0, n);
+	}
+
+	private int hex(int i, int to) {
+		if(i >= to) {
+			return -1;
+		}
+		byte b = body[i];
+		if(b >= '0' && b <= '9') {
+			return b - '0';
+		} else if(b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		} else if(b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		}
+		return -1;
+	}
+
+	private static byte[][] bytes(String... keys) {
+		byte[][] result = new byte[keys.length][];
+		for(int i = 0; i < keys.length; i++) {
+			result[i] = keys[i].getBytes(ISO_8859_1);
+		}
+		return result;
+	}
+}
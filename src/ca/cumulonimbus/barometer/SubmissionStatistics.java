@@ -0,0 +1,159 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user submission counters kept in memory so the statistics page
+ * doesn't have to go to the archive. A user's counters are loaded from the
+ * database the first time they are asked for, and from then on every stored
+ * reading bumps them.
+ *
+ * Besides the total and the first and last submission times, each user
+ * keeps hourly counts for the last HOURS hours, which is enough to answer
+ * "how many in the last day" to the hour.
+ *
+ * Readings stored while a user's counters are being loaded may be missed;
+ * the counts are for display, not accounting. Counters nobody has asked for
+ * in IDLE hours are dropped, and loaded again if they're wanted later.
+ */
+public class SubmissionStatistics {
+
+	static final long HOUR = 1000 * 60 * 60;
+	static final int HOURS = 48;
+	// Hours a user's counters are kept after they were last asked for
+	static final long IDLE = HOURS;
+
+	/**
+	 * Counters for a single user.
+	 */
+	public static class UserCounts {
+		private long total;
+		private double first;
+		private double last;
+		// hourly[h % HOURS] counts readings in hour h, for h in (newestHour - HOURS, newestHour]
+		private final int[] hourly = new int[HOURS];
+		private long newestHour;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		public UserCounts(long total, double first, double last, long newestHour) {
+			this.total = total;
+			this.first = first;
+			this.last = last;
+			this.newestHour = newestHour;
+		}
+
+		synchronized void add(double time) {
+			total++;
+			if(total == 1 || time < first) {
+				first = time;
+			}
+			if(total == 1 || time > last) {
+				last = time;
+			}
+			addHourly((long) Math.floor(time / HOUR), 1);
+		}
+
+		synchronized void addHourly(long hour, int count) {
+			if(hour > newestHour) {
+				// Move the window forward, clearing the hours we skip over
+				long steps = Math.min(HOURS, hour - newestHour);
+				for(long h = 1; h <= steps; h++) {
+					hourly[(int) ((newestHour + h) % HOURS)] = 0;
+				}
+				newestHour = hour;
+			}
+			if(hour > newestHour - HOURS) {
+				hourly[(int) (hour % HOURS)] += count;
+			}
+		}
+
+		/**
+		 * Readings since sinceWhen, counted in whole hours: the hour sinceWhen falls
+		 * in is included. Returns -1 if sinceWhen is older than the hourly window.
+		 */
+		public synchronized long countSince(long sinceWhen, long now) {
+			if(sinceWhen <= 0) {
+				return total;
+			}
+			long fromHour = sinceWhen / HOUR;
+			long toHour = now / HOUR;
+			if(toHour > newestHour) {
+				// nothing recorded since newestHour; advance so stale hours read as zero
+				addHourly(toHour, 0);
+			}
+			if(fromHour <= newestHour - HOURS) {
+				return -1;
+			}
+			long count = 0;
+			for(long h = fromHour; h <= newestHour; h++) {
+				count += hourly[(int) (h % HOURS)];
+			}
+			return count;
+		}
+
+		public synchronized long getTotal() {
+			return total;
+		}
+
+		public synchronized double getFirst() {
+			return first;
+		}
+
+		public synchronized double getLast() {
+			return last;
+		}
+	}
+
+	private final ConcurrentHashMap<String, UserCounts> users = new ConcurrentHashMap<String, UserCounts>();
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	// Counters for a user, or null if they haven't been loaded yet
+	public UserCounts get(String userId) {
+		UserCounts counts = users.get(userId);
+		if(counts != null) {
+			counts.lastUsed = System.currentTimeMillis();
+		}
+		return counts;
+	}
+
+	/**
+	 * Install counters loaded from the database. If someone else got there first,
+	 * theirs are kept.
+	 */
+	public UserCounts load(String userId, UserCounts counts) {
+		evictIdle(System.currentTimeMillis());
+		UserCounts existing = users.putIfAbsent(userId, counts);
+		return (existing != null) ? existing : counts;
+	}
+
+	// A reading was stored. Only users we're already tracking are updated.
+	public void recordSubmission(String userId, double time) {
+		UserCounts counts = users.get(userId);
+		if(counts != null) {
+			counts.add(time);
+		}
+	}
+
+	public void remove(String userId) {
+		users.remove(userId);
+	}
+
+	// At most once an hour, drop the counters of users nobody has asked about lately
+	private void evictIdle(long now) {
+		if(now - lastSweep < HOUR) {
+			return;
+		}
+		lastSweep = now;
+		long cutoff = now - IDLE * HOUR;
+		for(Iterator<UserCounts> it = users.values().iterator(); it.hasNext(); ) {
+			if(it.next().lastUsed < cutoff) {
+				it.remove();
+			}
+		}
+	}
+
+	public int size() {
+		return users.size();
+	}
+}
@@ -0,0 +1,350 @@
+package ca.cumulonimbus.barometer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pressure tendency by region, kept up to date as readings arrive instead of
+ * being worked out from archive rows on request.
+ *
+ * The world is cut into a grid of cells. Each cell keeps the readings of
+ * the last few hours in a time-ordered ring, plus running least-squares
+ * sums that are updated as readings come in and age out. A cell's trend can
+ * then be read without looking at its readings.
+ *
+ * Phones at different altitudes read very different station pressures, so
+ * the sums are kept per user. The slope is the change within each user's
+ * own readings, pooled over the users in the view:
+ * sum(Sxy) / sum(Sxx), where Sxy and Sxx are centered on the user's own
+ * means. Each cell keeps the totals of those, so a view only has to add up
+ * the totals of the cells it covers.
+ */
+public class TendencyEngine {
+
+	private static final double CELL_DEGREES = 0.5;
+	private static final int COLUMNS = (int) Math.ceil(360 / CELL_DEGREES);
+	// Readings held per cell; the oldest go first when a cell is busy
+	private static final int CELL_CAPACITY = 256;
+	private static final double HOUR = 1000 * 60 * 60;
+	// Sums are kept relative to a reference time; move it on after this many hours
+	private static final double REBASE_HOURS = 24 * 7;
+	// Running totals drift as things are added and taken away; rebuild them this often
+	private static final int RECOMPUTE_EVERY = 4096;
+
+	// Least-squares sums for one user's readings in one cell, time in hours
+	private static class Sums {
+		int n;
+		double t;
+		double p;
+		double tt;
+		double tp;
+
+		void add(double time, double pressure, int sign) {
+			n += sign;
+			t += sign * time;
+			p += sign * pressure;
+			tt += sign * time * time;
+			tp += sign * time * pressure;
+		}
+
+		double sxx() {
+			return (n < 2) ? 0 : tt - t * t / n;
+		}
+
+		double sxy() {
+			return (n < 2) ? 0 : tp - t * p / n;
+		}
+	}
+
+	private static class Cell {
+		final double[] times = new double[CELL_CAPACITY];
+		final double[] pressures = new double[CELL_CAPACITY];
+		final String[] users = new String[CELL_CAPACITY];
+		int head = 0;
+		int size = 0;
+		double reference = Double.NaN;
+
+		final HashMap<String, Sums> byUser = new HashMap<String, Sums>();
+		double sxx;
+		double sxy;
+		int operations = 0;
+
+		double timeAt(int i) {
+			return times[(head + i) % CELL_CAPACITY];
+		}
+	}
+
+	/**
+	 * A trend read from the engine.
+	 */
+	public static class Tendency {
+		double slope;
+		int readings;
+		String trend;
+
+		// hPa per hour
+		public double getSlope() {
+			return slope;
+		}
+
+		public int getReadings() {
+			return readings;
+		}
+
+		// rising, falling, steady or unknown
+		public String getTrend() {
+			return trend;
+		}
+	}
+
+	private final long window;
+	private final double steadySlope;
+	private final int minimumReadings;
+	private final ConcurrentHashMap<Integer, Cell> cells = new ConcurrentHashMap<Integer, Cell>();
+
+	/**
+	 * @param windowHours how far back a trend looks
+	 * @param steadySlope hPa per hour below which pressure counts as steady
+	 * @param minimumReadings readings a view needs before it gets a trend
+	 */
+	public TendencyEngine(double windowHours, double steadySlope, int minimumReadings) {
+		this.window = (long) (windowHours * HOUR);
+		this.steadySlope = steadySlope;
+		this.minimumReadings = minimumReadings;
+	}
+
+	public void add(BarometerReading br) {
+		if(br == null || br.getAndroidId() == null || br.getReading() <= 0) {
+			return;
+		}
+		if(br.getTime() > System.currentTimeMillis() + BarometerReading.MAX_CLOCK_AHEAD) {
+			// from a phone whose clock is ahead; it would push the real readings out of the window
+			return;
+		}
+		Integer key = cellKey(br.getLatitude(), br.getLongitude());
+		Cell cell = cells.get(key);
+		if(cell == null) {
+			Cell created = new Cell();
+			cell = cells.putIfAbsent(key, created);
+			if(cell == null) {
+				cell = created;
+			}
+		}
+		synchronized(cell) {
+			add(cell, br.getTime(), br.getReading(), br.getAndroidId(), System.currentTimeMillis());
+		}
+	}
+
+	// Forget a user, as when they ask for their data to be deleted
+	public void remove(String userId) {
+		for(Cell cell : cells.values()) {
+			synchronized(cell) {
+				if(!cell.byUser.containsKey(userId)) {
+					continue;
+				}
+				int kept = 0;
+				for(int i = 0; i < cell.size; i++) {
+					int from = (cell.head + i) % CELL_CAPACITY;
+					if(!userId.equals(cell.users[from])) {
+						int to = (cell.head + kept) % CELL_CAPACITY;
+						cell.times[to] = cell.times[from];
+						cell.pressures[to] = cell.pressures[from];
+						cell.users[to] = cell.users[from];
+						kept++;
+					}
+				}
+				for(int i = kept; i < cell.size; i++) {
+					cell.users[(cell.head + i) % CELL_CAPACITY] = null;
+				}
+				cell.size = kept;
+				recompute(cell);
+			}
+		}
+	}
+
+	/**
+	 * The trend over a region, from the cells it overlaps.
+	 */
+	public Tendency getTendency(double lat1, double lat2, double lon1, double lon2) {
+		long now = System.currentTimeMillis();
+		double sxx = 0;
+		double sxy = 0;
+		int readings = 0;
+
+		int minRow = row(lat1);
+		int maxRow = row(lat2);
+		int minColumn = column(lon1);
+		int maxColumn = column(lon2);
+		long span = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+		if(span <= cells.size()) {
+			for(int row = minRow; row <= maxRow; row++) {
+				for(int column = minColumn; column <= maxColumn; column++) {
+					Cell cell = cells.get(row * COLUMNS + column);
+					if(cell != null) {
+						synchronized(cell) {
+							expire(cell, now - window);
+							sxx += cell.sxx;
+							sxy += cell.sxy;
+							readings += cell.size;
+						}
+					}
+				}
+			}
+		} else {
+			// A wide view covers more grid squares than we have cells; walk the cells instead
+			for(Map.Entry<Integer, Cell> entry : cells.entrySet()) {
+				int row = entry.getKey() / COLUMNS;
+				int column = entry.getKey() % COLUMNS;
+				if(row < minRow || row > maxRow || column < minColumn || column > maxColumn) {
+					continue;
+				}
+				Cell cell = entry.getValue();
+				synchronized(cell) {
+					expire(cell, now - window);
+					sxx += cell.sxx;
+					sxy += cell.sxy;
+					readings += cell.size;
+				}
+			}
+		}
+
+		Tendency tendency = new Tendency();
+		tendency.readings = readings;
+		if(readings < minimumReadings || sxx <= 0) {
+			tendency.trend = "unknown";
+			return tendency;
+		}
+		tendency.slope = sxy / sxx;
+		tendency.trend = ScienceHandler.trendFromSlope(tendency.slope, steadySlope);
+		return tendency;
+	}
+
+	/**
+	 * The region's trend as a Window and TrendWindow, the slope going in the Window's trend.
+	 */
+	public TrendWindow getTrendWindow(double lat1, double lat2, double lon1, double lon2) {
+		Tendency tendency = getTendency(lat1, lat2, lon1, lon2);
+		return new TrendWindow(tendency.trend, new Window(lat1, lat2, lon1, lon2, tendency.slope));
+	}
+
+	public int size() {
+		return cells.size();
+	}
+
+	private void add(Cell cell, double time, double pressure, String user, long now) {
+		if(Double.isNaN(cell.reference)) {
+			cell.reference = time;
+		}
+		if(cell.size > 0 && time < cell.timeAt(0) && cell.size == CELL_CAPACITY) {
+			// older than everything in a full cell
+			return;
+		}
+		if(cell.size == CELL_CAPACITY) {
+			removeOldest(cell);
+		}
+		// Readings mostly arrive in order; walk back from the end for ones that don't
+		int position = cell.size;
+		while(position > 0 && cell.timeAt(position - 1) > time) {
+			int from = (cell.head + position - 1) % CELL_CAPACITY;
+			int to = (cell.head + position) % CELL_CAPACITY;
+			cell.times[to] = cell.times[from];
+			cell.pressures[to] = cell.pressures[from];
+			cell.users[to] = cell.users[from];
+			position--;
+		}
+		int slot = (cell.head + position) % CELL_CAPACITY;
+		cell.times[slot] = time;
+		cell.pressures[slot] = pressure;
+		cell.users[slot] = user;
+		cell.size++;
+
+		double newest = cell.timeAt(cell.size - 1);
+		if((newest - cell.reference) / HOUR > REBASE_HOURS) {
+			cell.reference = cell.timeAt(0);
+			recompute(cell);
+		} else {
+			update(cell, user, time, pressure, 1);
+		}
+		expire(cell, now - window);
+	}
+
+	// Drop readings from before the window
+	private void expire(Cell cell, double cutoff) {
+		while(cell.size > 0 && cell.timeAt(0) < cutoff) {
+			removeOldest(cell);
+		}
+	}
+
+	private void removeOldest(Cell cell) {
+		int slot = cell.head;
+		String user = cell.users[slot];
+		update(cell, user, cell.times[slot], cell.pressures[slot], -1);
+		cell.users[slot] = null;
+		cell.head = (cell.head + 1) % CELL_CAPACITY;
+		cell.size--;
+	}
+
+	// Add (sign 1) or take away (sign -1) one reading, keeping the cell totals in step
+	private void update(Cell cell, String user, double time, double pressure, int sign) {
+		Sums sums = cell.byUser.get(user);
+		if(sums == null) {
+			if(sign < 0) {
+				return;
+			}
+			sums = new Sums();
+			cell.byUser.put(user, sums);
+		}
+		cell.sxx -= sums.sxx();
+		cell.sxy -= sums.sxy();
+		sums.add((time - cell.reference) / HOUR, pressure, sign);
+		if(sums.n <= 0) {
+			cell.byUser.remove(user);
+		} else {
+			cell.sxx += sums.sxx();
+			cell.sxy += sums.sxy();
+		}
+		if(++cell.operations >= RECOMPUTE_EVERY) {
+			recompute(cell);
+		}
+	}
+
+	// Rebuild the sums from the readings held
+	private void recompute(Cell cell) {
+		cell.byUser.clear();
+		cell.sxx = 0;
+		cell.sxy = 0;
+		cell.operations = 0;
+		for(int i = 0; i < cell.size; i++) {
+			int slot = (cell.head + i) % CELL_CAPACITY;
+			Sums sums = cell.byUser.get(cell.users[slot]);
+			if(sums == null) {
+				sums = new Sums();
+				cell.byUser.put(cell.users[slot], sums);
+			}
+			sums.add((cell.times[slot] - cell.reference) / HOUR, cell.pressures[slot], 1);
+		}
+		for(Sums sums : cell.byUser.values()) {
+			cell.sxx += sums.sxx();
+			cell.sxy += sums.sxy();
+		}
+	}
+
+	private static Integer cellKey(double latitude, double longitude) {
+		return row(latitude) * COLUMNS + column(longitude);
+	}
+
+	private static int row(double latitude) {
+		int rows = (int) Math.ceil(180 / CELL_DEGREES);
+		return Math.max(0, Math.min(rows - 1, (int) Math.floor((latitude + 90) / CELL_DEGREES)));
+	}
+
+	private static int column(double longitude) {
+		return Math.max(0, Math.min(COLUMNS - 1, (int) Math.floor((longitude + 180) / CELL_DEGREES)));
+	}
+
+	@Override
+	public String toString() {
+		return "tendency cells: " + cells.size();
+	}
+}
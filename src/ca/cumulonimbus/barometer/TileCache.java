@@ -0,0 +1,228 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache the serialized local_data payload for map tiles. A viewport is
+ * snapped to a handful of tiles at a zoom level picked from its span, and
+ * the response is put together from the cached tiles, keeping only the rows
+ * inside the viewport.
+ *
+ * Tiles are equal-angle squares: at zoom z a tile is 360 / 2^z degrees on a
+ * side, holding what lies on its minimum edges but not its maximum ones.
+ * Entries belong to a time bucket and are only served within it, and a new
+ * reading or condition drops every tile that contains it. A tile built while
+ * something new landed in it isn't kept: take its generation before building
+ * and hand it to put.
+ */
+public class TileCache {
+
+	private static final int MIN_ZOOM = 1;
+	private static final int MAX_ZOOM = 16;
+	// Invalidation counters, shared by tiles whose keys hash alike
+	private static final int GENERATION_STRIPES = 4096;
+
+	/**
+	 * One map tile.
+	 */
+	public static class Tile {
+		int zoom;
+		int x;
+		int y;
+		double minLatitude;
+		double maxLatitude;
+		double minLongitude;
+		double maxLongitude;
+
+		public Tile(int zoom, int x, int y) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+			double size = tileDegrees(zoom);
+			minLatitude = -90 + y * size;
+			maxLatitude = minLatitude + size;
+			minLongitude = -180 + x * size;
+			maxLongitude = minLongitude + size;
+		}
+
+		public String getKey() {
+			return zoom + "/" + x + "/" + y;
+		}
+	}
+
+	/**
+	 * A tile's readings or conditions, already encoded for the response, with
+	 * where each row ends and the position it was recorded at. Rows are sent
+	 * with their fudged position but clipped on the recorded one.
+	 */
+	public static class Rows {
+		private final byte[] data;
+		private final int[] ends;
+		private final double[] latitudes;
+		private final double[] longitudes;
+
+		public Rows(byte[] data, int[] ends, double[] latitudes, double[] longitudes) {
+			this.data = data;
+			this.ends = ends;
+			this.latitudes = latitudes;
+			this.longitudes = longitudes;
+		}
+
+		/**
+		 * Write the rows whose recorded position is strictly inside the region,
+		 * up to max of them.
+		 * @return the number written
+		 */
+		public int writeInside(RowWriter out, double lat1, double lat2, double lon1, double lon2, int max) throws IOException {
+			int written = 0;
+			int start = 0;
+			for(int row = 0; row < ends.length && written < max; row++) {
+				if(latitudes[row] > lat1 && latitudes[row] < lat2 && longitudes[row] > lon1 && longitudes[row] < lon2) {
+					out.write(data, start, ends[row] - start);
+					written++;
+				}
+				start = ends[row];
+			}
+			return written;
+		}
+	}
+
+	private static class CachedTile {
+		long bucket;
+		Rows readings;
+		Rows conditions;
+
+		CachedTile(long bucket, Rows readings, Rows conditions) {
+			this.bucket = bucket;
+			this.readings = readings;
+			this.conditions = conditions;
+		}
+	}
+
+	private final int maxTiles;
+	private final long bucketLength;
+	private final LinkedHashMap<String, CachedTile> entries;
+	private final long[] generations = new long[GENERATION_STRIPES];
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * @param maxTiles size bound of the LRU
+	 * @param bucketLength ms a cached tile stays valid
+	 */
+	public TileCache(final int maxTiles, long bucketLength) {
+		this.maxTiles = maxTiles;
+		this.bucketLength = bucketLength;
+		this.entries = new LinkedHashMap<String, CachedTile>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedTile> eldest) {
+				return size() > TileCache.this.maxTiles;
+			}
+		};
+	}
+
+	// The current time bucket. Tiles are only served in the bucket they were built.
+	public long currentBucket() {
+		return System.currentTimeMillis() / bucketLength;
+	}
+
+	// Start of a bucket in ms, so "since" cutoffs are the same for everything built in it
+	public long bucketStart(long bucket) {
+		return bucket * bucketLength;
+	}
+
+	/**
+	 * Cached {readings, conditions} rows for the tile, or null if the tile
+	 * wasn't built in this bucket.
+	 */
+	public synchronized Rows[] get(Tile tile, long bucket) {
+		CachedTile entry = entries.get(tile.getKey());
+		if(entry == null || entry.bucket != bucket) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new Rows[] {entry.readings, entry.conditions};
+	}
+
+	// Take before building a tile, to hand to put
+	public synchronized long generation(Tile tile) {
+		return generations[stripe(tile.getKey())];
+	}
+
+	// Keep a built tile, unless something landed in it since generation was taken
+	public synchronized void put(Tile tile, long bucket, long generation, Rows readings, Rows conditions) {
+		if(generations[stripe(tile.getKey())] != generation) {
+			return;
+		}
+		entries.put(tile.getKey(), new CachedTile(bucket, readings, conditions));
+	}
+
+	// Something new arrived at this location: drop the tiles that cover it at every zoom.
+	public synchronized void invalidate(double latitude, double longitude) {
+		for(int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+			double size = tileDegrees(zoom);
+			int x = (int) Math.floor((longitude + 180) / size);
+			int y = (int) Math.floor((latitude + 90) / size);
+			String key = zoom + "/" + x + "/" + y;
+			entries.remove(key);
+			generations[stripe(key)]++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * The tiles covering a viewport. The zoom is the deepest one whose tiles are
+	 * still at least half the larger span, so a viewport needs at most three
+	 * tiles on a side.
+	 */
+	public static ArrayList<Tile> tilesForRegion(double lat1, double lat2, double lon1, double lon2) {
+		double span = Math.max(lat2 - lat1, lon2 - lon1);
+		int zoom = MAX_ZOOM;
+		while(zoom > MIN_ZOOM && tileDegrees(zoom) < span / 2) {
+			zoom--;
+		}
+		double size = tileDegrees(zoom);
+		int tilesAcross = (int) Math.round(360 / size);
+		int tilesDown = (int) Math.round(180 / size);
+		int minX = clamp((int) Math.floor((lon1 + 180) / size), tilesAcross);
+		int maxX = clamp((int) Math.floor((lon2 + 180) / size), tilesAcross);
+		int minY = clamp((int) Math.floor((lat1 + 90) / size), tilesDown);
+		int maxY = clamp((int) Math.floor((lat2 + 90) / size), tilesDown);
+
+		ArrayList<Tile> tiles = new ArrayList<Tile>();
+		for(int y = minY; y <= maxY; y++) {
+			for(int x = minX; x <= maxX; x++) {
+				tiles.add(new Tile(zoom, x, y));
+			}
+		}
+		return tiles;
+	}
+
+	private static int stripe(String key) {
+		return (key.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+
+	private static int clamp(int index, int count) {
+		return Math.max(0, Math.min(count - 1, index));
+	}
+
+	static double tileDegrees(int zoom) {
+		return 360.0 / (1 << zoom);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "tiles: " + entries.size() + ", hits: " + hits.get() + ", misses: " + misses.get();
+	}
+}
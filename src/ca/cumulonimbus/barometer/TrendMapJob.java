@@ -0,0 +1,301 @@
+package ca.cumulonimbus.barometer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Build a trend map of the whole globe in the background, so clients can
+ * fetch every region's tendency in one request.
+ *
+ * The globe is split into Windows of WINDOW_DEGREES on a side. Every few
+ * minutes the job streams the last TENDENCY_HOURS of the archive once,
+ * sorting readings into their windows as primitive arrays. The windows are
+ * then worked out in parallel on a fork-join pool. The finished map is
+ * published as an immutable snapshot with its response already serialized.
+ *
+ * A window's slope is found the same way the TendencyEngine does it: least
+ * squares within each user's own readings, pooled over the users.
+ */
+public class TrendMapJob {
+	private static String logName = "ca.cumulonimbus.barometer.TrendMapJob";
+	private static Logger log = Logger.getLogger(logName);
+
+	private static final double WINDOW_DEGREES = 5;
+	private static final int ROWS = (int) Math.ceil(180 / WINDOW_DEGREES);
+	private static final int COLUMNS = (int) Math.ceil(360 / WINDOW_DEGREES);
+	private static final long REBUILD_MINUTES = 10;
+	// Windows per fork-join task before it stops splitting
+	private static final int WINDOWS_PER_TASK = 32;
+	private static final double HOUR = 1000 * 60 * 60;
+
+	/**
+	 * A published trend map. Never changes once built.
+	 */
+	public static class TrendMap {
+		final long generated;
+		final List<TrendWindow> windows;
+		final byte[] payload;
+
+		TrendMap(long generated, List<TrendWindow> windows, byte[] payload) {
+			this.generated = generated;
+			this.windows = windows;
+			this.payload = payload;
+		}
+
+		public long getGenerated() {
+			return generated;
+		}
+
+		// Only windows with enough readings for a trend
+		public List<TrendWindow> getWindows() {
+			return windows;
+		}
+
+		/**
+		 * The map in the web format: the time it was built, then
+		 * minLat|maxLat|minLon|maxLon|trend|hPa per hour; for each window.
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+	}
+
+	// The readings that fell in one window, in time order
+	private static class WindowReadings {
+		double[] times = new double[16];
+		double[] pressures = new double[16];
+		int[] users = new int[16];
+		int size = 0;
+
+		void add(double time, double pressure, int user) {
+			if(size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				pressures = Arrays.copyOf(pressures, size * 2);
+				users = Arrays.copyOf(users, size * 2);
+			}
+			times[size] = time;
+			pressures[size] = pressure;
+			users[size] = user;
+			size++;
+		}
+	}
+
+	private final DatabaseHelper dh;
+	private final int minimumReadings;
+	private volatile TrendMap snapshot;
+	private ScheduledExecutorService scheduler;
+	private ForkJoinPool forkJoinPool;
+
+	public TrendMapJob(DatabaseHelper dh, int minimumReadings) {
+		this.dh = dh;
+		this.minimumReadings = minimumReadings;
+	}
+
+	public synchronized void start() {
+		if(scheduler != null) {
+			return;
+		}
+		forkJoinPool = new ForkJoinPool();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "trend-map");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rebuild();
+				} catch(RuntimeException e) {
+					// keep the schedule alive; try again next time
+					log.info("trend map failed: " + e.getMessage());
+				}
+			}
+		}, 0, REBUILD_MINUTES, TimeUnit.MINUTES);
+	}
+
+	public synchronized void stop() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if(forkJoinPool != null) {
+			forkJoinPool.shutdownNow();
+			forkJoinPool = null;
+		}
+	}
+
+	// The latest map, or null until the first one is built
+	public TrendMap getSnapshot() {
+		return snapshot;
+	}
+
+	void rebuild() {
+		long started = System.currentTimeMillis();
+		final WindowReadings[] windows = new WindowReadings[ROWS * COLUMNS];
+		final HashMap<String, Integer> userIds = new HashMap<String, Integer>();
+		int rows = dh.forEachArchiveReading(started - dh.getTendencyWindow(), new DatabaseHelper.ArchiveReadingHandler() {
+			public void handle(BarometerReading br) {
+				if(br.getAndroidId() == null || br.getReading() <= 0) {
+					return;
+				}
+				Integer user = userIds.get(br.getAndroidId());
+				if(user == null) {
+					user = userIds.size();
+					userIds.put(br.getAndroidId(), user);
+				}
+				int index = row(br.getLatitude()) * COLUMNS + column(br.getLongitude());
+				if(windows[index] == null) {
+					windows[index] = new WindowReadings();
+				}
+				windows[index].add(br.getTime(), br.getReading(), user);
+			}
+		});
+		if(rows < 0) {
+			return;
+		}
+
+		final TrendWindow[] results = new TrendWindow[windows.length];
+		ForkJoinPool fjp;
+		synchronized(this) {
+			fjp = forkJoinPool;
+		}
+		if(fjp == null) {
+			return;
+		}
+		fjp.invoke(new WindowTask(windows, results, 0, windows.length, dh.getSteadySlope()));
+
+		ArrayList<TrendWindow> published = new ArrayList<TrendWindow>();
+		for(TrendWindow result : results) {
+			if(result != null) {
+				published.add(result);
+			}
+		}
+		try {
+			snapshot = new TrendMap(started, Collections.unmodifiableList(published), serialize(started, published));
+		} catch(IOException ioe) {
+			// writing to memory doesn't fail
+			log.info(ioe.getMessage());
+			return;
+		}
+		log.info("trend map of " + published.size() + " windows from " + rows + " readings in "
+				+ (System.currentTimeMillis() - started) + "ms");
+	}
+
+	// Works out windows [from, to), splitting until the range is small
+	private class WindowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final WindowReadings[] windows;
+		final TrendWindow[] results;
+		final int from;
+		final int to;
+		final double steadySlope;
+
+		WindowTask(WindowReadings[] windows, TrendWindow[] results, int from, int to, double steadySlope) {
+			this.windows = windows;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+			this.steadySlope = steadySlope;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= WINDOWS_PER_TASK) {
+				for(int i = from; i < to; i++) {
+					if(windows[i] != null && windows[i].size >= minimumReadings) {
+						results[i] = trendFor(i, windows[i], steadySlope);
+					}
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new WindowTask(windows, results, from, middle, steadySlope),
+					new WindowTask(windows, results, middle, to, steadySlope));
+		}
+	}
+
+	// Pooled within-user least squares over one window, or null if there's no trend to see
+	private static TrendWindow trendFor(int index, WindowReadings readings, double steadySlope) {
+		HashMap<Integer, double[]> byUser = new HashMap<Integer, double[]>();
+		double reference = readings.times[0];
+		for(int i = 0; i < readings.size; i++) {
+			double[] sums = byUser.get(readings.users[i]);
+			if(sums == null) {
+				// n, sum t, sum p, sum tt, sum tp
+				sums = new double[5];
+				byUser.put(readings.users[i], sums);
+			}
+			double t = (readings.times[i] - reference) / HOUR;
+			double p = readings.pressures[i];
+			sums[0]++;
+			sums[1] += t;
+			sums[2] += p;
+			sums[3] += t * t;
+			sums[4] += t * p;
+		}
+		double sxx = 0;
+		double sxy = 0;
+		for(double[] sums : byUser.values()) {
+			if(sums[0] >= 2) {
+				sxx += sums[3] - sums[1] * sums[1] / sums[0];
+				sxy += sums[4] - sums[1] * sums[2] / sums[0];
+			}
+		}
+		if(sxx <= 0) {
+			return null;
+		}
+		double slope = sxy / sxx;
+		double minLat = -90 + (index / COLUMNS) * WINDOW_DEGREES;
+		double minLon = -180 + (index % COLUMNS) * WINDOW_DEGREES;
+		Window window = new Window(minLat, minLat + WINDOW_DEGREES, minLon, minLon + WINDOW_DEGREES, slope);
+		return new TrendWindow(ScienceHandler.trendFromSlope(slope, steadySlope), window);
+	}
+
+	private static byte[] serialize(long generated, List<TrendWindow> windows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RowWriter writer = new RowWriter(bytes);
+		writer.writeString("trend_map return;");
+		writer.writeLong(generated);
+		writer.writeString(";");
+		for(TrendWindow tw : windows) {
+			writer.writeDouble(tw.window.minLatitude);
+			writer.writeString("|");
+			writer.writeDouble(tw.window.maxLatitude);
+			writer.writeString("|");
+			writer.writeDouble(tw.window.minLongitude);
+			writer.writeString("|");
+			writer.writeDouble(tw.window.maxLongitude);
+			writer.writeString("|");
+			writer.writeString(tw.trend);
+			writer.writeString("|");
+			writer.writeDouble(tw.window.trend);
+			writer.writeString(";");
+		}
+		writer.flush();
+		return bytes.toByteArray();
+	}
+
+	private static int row(double latitude) {
+		return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((latitude + 90) / WINDOW_DEGREES)));
+	}
+
+	private static int column(double longitude) {
+		return Math.max(0, Math.min(COLUMNS - 1, (int) Math.floor((longitude + 180) / WINDOW_DEGREES)));
+	}
+}
@@ -11,29 +11,8 @@ public class Unit {
 	double valueInMb;
 	String abbrev;
 	
-	// Conversion factors from http://www.csgnetwork.com/meteorologyconvtbl.html
 	public double convertToPreferredUnit() {
-		try {
-			if(abbrev.contains("mbar")) {
-				// No change. reading comes to us in mbar.
-				return valueInMb;
-			} else if(abbrev.contains("hPa")) {
-				// mbar = hpa.
-				return valueInMb;
-			} else if(abbrev.contains("atm")) {
-				return valueInMb * 0.000986923;
-			} else if(abbrev.contains("kPa")) {
-				return valueInMb * 0.1;
-			} else if(abbrev.contains("mmHg")) {
-				return valueInMb * 0.75006;
-			} else if(abbrev.contains("inHg")) {
-				return valueInMb * 0.02961;
-			} else {
-				return valueInMb;
-			}
-		} catch(Exception e) {
-			return valueInMb;
-		}
+		return PressureUnit.parse(abbrev).fromMbar(valueInMb);
 	}
 	
 	public String getDisplayText() {